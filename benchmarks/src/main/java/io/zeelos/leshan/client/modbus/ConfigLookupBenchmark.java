@@ -0,0 +1,73 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of resolving the configuration of a resource from its id, as done on every read and write.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigLookupBenchmark {
+
+    private static final int FIRST_RESOURCE = 26251;
+
+    @Param({ "8", "100", "1000" })
+    int resources;
+
+    private Map<String, ModbusConfig.Resource> config;
+    private ModbusSensor sensor;
+    private int next;
+
+    @Setup
+    public void setup() {
+        config = new LinkedHashMap<>();
+        for (int i = 0; i < resources; i++) {
+            config.put(String.valueOf(FIRST_RESOURCE + i),
+                    Fixtures.resource(ModbusSensor.HOLDING_REGISTER, i, 0));
+        }
+
+        sensor = new ModbusSensor(0, Fixtures.instance(config),
+                Collections.singletonMap(ModbusConfig.DEFAULT_CONNECTION, Fixtures.unconnected()), null);
+    }
+
+    /**
+     * The lookup done before the configuration was compiled into a dispatch table.
+     */
+    @Benchmark
+    public ModbusConfig.Resource lookup() {
+        return config.get(String.valueOf(nextResource()));
+    }
+
+    @Benchmark
+    public ResourceBinding binding() {
+        return sensor.binding(nextResource());
+    }
+
+    private int nextResource() {
+        int resourceid = FIRST_RESOURCE + next;
+        if (++next == resources) {
+            next = 0;
+        }
+
+        return resourceid;
+    }
+}
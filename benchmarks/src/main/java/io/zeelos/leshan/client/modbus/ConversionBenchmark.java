@@ -0,0 +1,95 @@
+package io.zeelos.leshan.client.modbus;
+
+import io.zeelos.leshan.client.modbus.utils.Utils;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the conversions between Modbus tables and LWM2M multiple instances resources, without any I/O.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({ "1", "10", "125" })
+    int quantity;
+
+    private int[] registers;
+    private boolean[] bits;
+
+    private LwM2mResource registersResource;
+    private LwM2mResource bitsResource;
+
+    private RegisterCodec float32;
+
+    @Setup
+    public void setup() {
+        registers = new int[quantity * 2];
+        bits = new boolean[quantity];
+        for (int i = 0; i < registers.length; i++) {
+            registers[i] = i & 0xFFFF;
+        }
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = (i & 1) == 0;
+        }
+
+        registersResource = LwM2mMultipleResource.newIntegerResource(0, Utils.asMapInteger(registers));
+        bitsResource = LwM2mMultipleResource.newBooleanResource(0, Utils.asMapBoolean(bits));
+
+        ModbusConfig.Resource resource = Fixtures.resource(ModbusSensor.HOLDING_REGISTER, 0, quantity);
+        resource.dataType = "float32";
+        float32 = resource.codec();
+    }
+
+    @Benchmark
+    public Map<Integer, ?> registersToMap() {
+        return Utils.asMapInteger(registers);
+    }
+
+    @Benchmark
+    public Map<Integer, ?> bitsToMap() {
+        return Utils.asMapBoolean(bits);
+    }
+
+    /**
+     * The map view as copied by leshan when building the response node.
+     */
+    @Benchmark
+    public LwM2mResource registersToResource() {
+        return LwM2mMultipleResource.newResource(0, Utils.asMapInteger(registers), ResourceModel.Type.INTEGER);
+    }
+
+    @Benchmark
+    public int[] resourceToRegisters() {
+        return Utils.asArrInteger(registersResource.getValues());
+    }
+
+    @Benchmark
+    public boolean[] resourceToBits() {
+        return Utils.asArrBoolean(bitsResource.getValues());
+    }
+
+    @Benchmark
+    public double[] decodeFloat32() {
+        return float32.decodeDoubles(registers, quantity);
+    }
+}
@@ -0,0 +1,102 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a LWM2M read request handled by the object enabler of the bundled 26241 object (two instances), down to
+ * the {@link StubSlave} and back to the response node.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndReadBenchmark {
+
+    private static final int OBJECT_ID = 26241;
+
+    private StubSlave slave;
+    private ModbusChannel channel;
+
+    private LwM2mObjectEnabler enabler;
+
+    private final ReadRequest readResource = new ReadRequest(OBJECT_ID, 0, 26251);
+    private final ReadRequest readMultipleResource = new ReadRequest(OBJECT_ID, 0, 26255);
+    private final ReadRequest readInstance = new ReadRequest(OBJECT_ID, 0);
+    private final ReadRequest readObject = new ReadRequest(OBJECT_ID);
+
+    @Setup
+    public void setup() throws Exception {
+        slave = new StubSlave();
+        channel = slave.connect("benchmark");
+
+        // same layout as the first instance of the sample modbus.json, without polling
+        Map<String, ModbusConfig.Resource> resources = new LinkedHashMap<>();
+        resources.put("26251", Fixtures.resource(ModbusSensor.HOLDING_REGISTER, 0, 0));
+        resources.put("26252", Fixtures.resource(ModbusSensor.INPUT_REGISTER, 0, 0));
+        resources.put("26253", Fixtures.resource(ModbusSensor.COIL, 0, 0));
+        resources.put("26254", Fixtures.resource(ModbusSensor.DISCRETE_INPUT, 0, 0));
+        resources.put("26255", Fixtures.resource(ModbusSensor.HOLDING_REGISTER, 0, 10));
+        resources.put("26256", Fixtures.resource(ModbusSensor.INPUT_REGISTER, 0, 4));
+        resources.put("26257", Fixtures.resource(ModbusSensor.COIL, 0, 4));
+        resources.put("26258", Fixtures.resource(ModbusSensor.DISCRETE_INPUT, 0, 4));
+
+        Map<String, ModbusChannel> channels = Collections.singletonMap(ModbusConfig.DEFAULT_CONNECTION, channel);
+        ModbusSensor sensor = new ModbusSensor(0, Fixtures.instance(resources), channels, null);
+        ModbusSensor other = new ModbusSensor(1, Fixtures.instance(resources), channels, null);
+
+        ModbusObjectsInitializer initializer = new ModbusObjectsInitializer(
+                new LwM2mModel(ObjectLoader.loadDdfResources("/models/", new String[] { "26241.xml" })));
+        initializer.setInstancesForObject(OBJECT_ID, sensor, other);
+
+        enabler = initializer.create(OBJECT_ID);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.stop();
+        slave.close();
+    }
+
+    @Benchmark
+    public ReadResponse readResource() {
+        return enabler.read(ServerIdentity.SYSTEM, readResource);
+    }
+
+    @Benchmark
+    public ReadResponse readMultipleResource() {
+        return enabler.read(ServerIdentity.SYSTEM, readMultipleResource);
+    }
+
+    @Benchmark
+    public ReadResponse readInstance() {
+        return enabler.read(ServerIdentity.SYSTEM, readInstance);
+    }
+
+    @Benchmark
+    public ReadResponse readObject() {
+        return enabler.read(ServerIdentity.SYSTEM, readObject);
+    }
+}
@@ -0,0 +1,45 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.master.ModbusMasterFactory;
+import com.intelligt.modbus.jlibmodbus.tcp.TcpParameters;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Configuration snippets shared by the benchmarks, built the way the gson deserializer fills them.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    static ModbusConfig.Resource resource(String type, int startAddress, int quantity) {
+        ModbusConfig.Resource resource = new ModbusConfig.Resource();
+        resource.type = type;
+        resource.startAddress = startAddress;
+        resource.quantity = quantity;
+
+        return resource;
+    }
+
+    static ModbusConfig.Instance instance(Map<String, ModbusConfig.Resource> resources) {
+        ModbusConfig.Instance instance = new ModbusConfig.Instance();
+        instance.resources = resources;
+
+        return instance;
+    }
+
+    /**
+     * A channel which is never started, for benchmarks which do not reach the bus.
+     */
+    static ModbusChannel unconnected() {
+        return new MasterChannel("unconnected", 1, ModbusMasterFactory.createModbusMasterTCP(new TcpParameters()),
+                BusTime.tcp(1), 1, 1);
+    }
+
+    static ModbusSensor sensor(int resourceid, ModbusConfig.Resource resource, ModbusChannel channel) {
+        return new ModbusSensor(0, instance(Collections.singletonMap(String.valueOf(resourceid), resource)),
+                Collections.singletonMap(ModbusConfig.DEFAULT_CONNECTION, channel), null);
+    }
+}
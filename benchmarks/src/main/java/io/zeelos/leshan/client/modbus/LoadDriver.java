@@ -0,0 +1,246 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.Modbus;
+import io.zeelos.leshan.client.modbus.utils.Utils;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectLoader;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Issues LWM2M reads at a target rate against the gateway built from a modbus.json configuration, the same way the
+ * client does, and reports the achieved rate and the latency distribution.
+ * <p>
+ * Requests are scheduled open loop: the latency of a request is measured from the time it was due, so a gateway
+ * falling behind shows up in the tail instead of silently lowering the rate.
+ */
+class LoadDriver implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LoadDriver.class);
+
+    private static final String USAGE = "java -cp benchmarks.jar " + LoadDriver.class.getName() + " [OPTION]";
+
+    private final Map<String, ModbusChannel> channels;
+    private final ModbusPoller poller;
+
+    // every configured resource, with the enabler of its object
+    private final List<LwM2mObjectEnabler> enablers = new ArrayList<>();
+    private final List<ReadRequest> requests = new ArrayList<>();
+
+    LoadDriver(ModbusConfig config, List<ObjectModel> models) throws Exception {
+        channels = LeshanModbusClient.createAndStartChannels(config);
+
+        // the client logs every frame, which would dominate the measurement
+        Modbus.setLogLevel(Modbus.LogLevel.LEVEL_WARNINGS);
+
+        poller = new ModbusPoller(config.maxReadGap, config.sampleMillis);
+
+        ModbusObjectsInitializer initializer = new ModbusObjectsInitializer(new LwM2mModel(models));
+
+        List<ModbusSensor> sensors = new ArrayList<>();
+        List<Integer> objectIds = new ArrayList<>();
+
+        config.objects.forEach((key, instances) -> {
+            ModbusSensor[] modbusInstances = new ModbusSensor[instances.size()];
+
+            for (int i = 0; i < instances.size(); i++) {
+                modbusInstances[i] = new ModbusSensor(i, instances.get(i), channels, poller);
+                sensors.add(modbusInstances[i]);
+            }
+
+            initializer.setInstancesForObject(Integer.parseInt(key), modbusInstances);
+            objectIds.add(Integer.parseInt(key));
+        });
+
+        for (LwM2mObjectEnabler enabler : initializer.create(Utils.toIntArray(objectIds))) {
+            List<ModbusConfig.Instance> instances = config.objects.get(String.valueOf(enabler.getId()));
+
+            for (int i = 0; i < instances.size(); i++) {
+                for (String resourceid : instances.get(i).resources.keySet()) {
+                    enablers.add(enabler);
+                    requests.add(new ReadRequest(enabler.getId(), i, Integer.parseInt(resourceid)));
+                }
+            }
+        }
+
+        poller.start(sensors);
+    }
+
+    /**
+     * Reads every configured resource in turn at the given rate, from the given number of concurrent requesters.
+     */
+    Result run(double rate, long durationMillis, int concurrency) throws InterruptedException {
+        int count = (int) Math.min(Integer.MAX_VALUE, (long) (rate * durationMillis / 1000));
+        long period = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+
+        long[] latencies = new long[count];
+        AtomicLong errors = new AtomicLong();
+        AtomicLong last = new AtomicLong();
+
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            long due = start + i * period;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            int request = i % requests.size();
+            int index = i;
+            workers.execute(() -> {
+                boolean success;
+                try {
+                    success = enablers.get(request).read(ServerIdentity.SYSTEM, requests.get(request)).isSuccess();
+                } catch (RuntimeException e) {
+                    success = false;
+                }
+
+                long now = System.nanoTime();
+                latencies[index] = now - due;
+                last.accumulateAndGet(now, Math::max);
+
+                if (!success) {
+                    errors.incrementAndGet();
+                }
+            });
+        }
+
+        workers.shutdown();
+        workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        return new Result(rate, latencies, errors.get(), last.get() - start);
+    }
+
+    @Override
+    public void close() {
+        poller.stop();
+        channels.values().forEach(ModbusChannel::stop);
+    }
+
+    static class Result {
+        final double targetRate;
+        final long[] latencies;
+        final long errors;
+        final long elapsedNanos;
+
+        Result(double targetRate, long[] latencies, long errors, long elapsedNanos) {
+            this.targetRate = targetRate;
+            this.latencies = latencies.clone();
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+
+            Arrays.sort(this.latencies);
+        }
+
+        double achievedRate() {
+            return elapsedNanos == 0 ? 0 : latencies.length * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @return the latency (ms) under which the given fraction of the requests completed
+         */
+        double percentile(double fraction) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(fraction * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "requests:%d errors:%d rate[target:%.1f/s achieved:%.1f/s] latency ms[p50:%.3f p90:%.3f p99:%.3f p99.9:%.3f max:%.3f]",
+                    latencies.length, errors, targetRate, achievedRate(), percentile(0.5), percentile(0.9),
+                    percentile(0.99), percentile(0.999), percentile(1));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("h", "help", false, "Display help information.");
+        options.addOption("m", "modelsfolder", true,
+                "A folder which contains object models in OMA DDF(.xml) format.");
+        options.addOption("r", "rate", true, "Target LWM2M reads per second.\nDefault: 100");
+        options.addOption("s", "seconds", true, "Duration of the measurement.\nDefault: 30");
+        options.addOption("w", "warmup", true, "Duration of the warmup, in seconds.\nDefault: 5");
+        options.addOption("c", "concurrency", true, "Concurrent requesters.\nDefault: 8");
+        options.addOption("S", "simulate", false, "Simulate the configured devices in process.");
+        ModbusSimulator.addOptions(options);
+
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.setWidth(90);
+        formatter.setOptionComparator(null);
+
+        CommandLine cl;
+        ModbusConfig config;
+        try {
+            cl = new DefaultParser().parse(options, args);
+            if (cl.hasOption("h")) {
+                formatter.printHelp(USAGE, options);
+                return;
+            }
+
+            config = ModbusSimulator.readConfig(cl);
+        } catch (ParseException e) {
+            System.err.println("Parsing failed.  Reason: " + e.getMessage());
+            formatter.printHelp(USAGE, options);
+            return;
+        }
+
+        double rate = Double.parseDouble(cl.getOptionValue("r", "100"));
+        long seconds = Long.parseLong(cl.getOptionValue("s", "30"));
+        long warmup = Long.parseLong(cl.getOptionValue("w", "5"));
+        int concurrency = Integer.parseInt(cl.getOptionValue("c", "8"));
+
+        List<ObjectModel> models = ObjectLoader.loadDefault();
+        if (cl.hasOption("m")) {
+            models.addAll(ObjectLoader.loadObjectsFromDir(new File(cl.getOptionValue("m"))));
+        } else {
+            models.addAll(ObjectLoader.loadDdfResources("/models/", LeshanModbusClient.modelPaths));
+        }
+
+        ModbusSimulator simulator = null;
+        if (cl.hasOption("S")) {
+            simulator = new ModbusSimulator(config, ModbusSimulator.settings(cl));
+            simulator.start();
+        }
+
+        try (LoadDriver driver = new LoadDriver(config, models)) {
+            if (warmup > 0) {
+                LOG.info("Warming up for {} s", warmup);
+                driver.run(rate, TimeUnit.SECONDS.toMillis(warmup), concurrency);
+            }
+
+            LOG.info("Measuring {} reads/s for {} s", rate, seconds);
+            System.out.println(driver.run(rate, TimeUnit.SECONDS.toMillis(seconds), concurrency));
+        } finally {
+            if (simulator != null) {
+                simulator.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.data.DataHolder;
+import com.intelligt.modbus.jlibmodbus.data.ModbusCoils;
+import com.intelligt.modbus.jlibmodbus.data.ModbusHoldingRegisters;
+import com.intelligt.modbus.jlibmodbus.exception.IllegalDataAddressException;
+import com.intelligt.modbus.jlibmodbus.exception.IllegalDataValueException;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusProtocolException;
+import com.intelligt.modbus.jlibmodbus.serial.SerialParameters;
+import com.intelligt.modbus.jlibmodbus.serial.SerialPort;
+import com.intelligt.modbus.jlibmodbus.slave.ModbusSlave;
+import com.intelligt.modbus.jlibmodbus.slave.ModbusSlaveFactory;
+import com.intelligt.modbus.jlibmodbus.tcp.TcpParameters;
+import com.intelligt.modbus.jlibmodbus.utils.ModbusExceptionCode;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process Modbus slaves impersonating the devices of a modbus.json configuration: one slave per connection
+ * (TCP, RTU or ASCII, the serial ones typically over a pseudo-tty pair), with tables sized after the configured
+ * resources and optional injected latency, jitter, exception responses and disconnects.
+ * <p>
+ * A jlibmodbus slave answers a single unit id, the one of its connection.
+ */
+class ModbusSimulator implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ModbusSimulator.class);
+
+    private static final String USAGE = "java -cp benchmarks.jar " + ModbusSimulator.class.getName() + " [OPTION]";
+
+    /**
+     * Faults injected on every request.
+     */
+    static class Settings {
+        long latencyMillis;
+        long jitterMillis;
+
+        // probability of answering with an exception response instead of the data
+        double exceptionRate;
+        ModbusExceptionCode exceptionCode = ModbusExceptionCode.SLAVE_DEVICE_BUSY;
+
+        // the slaves stop listening for 'disconnectMillis' every 'disconnectEveryMillis'
+        long disconnectEveryMillis;
+        long disconnectMillis;
+
+        // input registers and discrete inputs change on every read, to exercise observations
+        boolean drift;
+
+        // serial device of the simulated side of each serial connection, by connection name
+        Map<String, String> devices = new HashMap<>();
+    }
+
+    private final Settings settings;
+    private final Map<String, ModbusSlave> slaves = new LinkedHashMap<>();
+    private final Map<String, DataHolder> holders = new LinkedHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    ModbusSimulator(ModbusConfig config, Settings settings) throws Exception {
+        this.settings = settings;
+
+        Map<String, ModbusConfig.Connection> connections = config.allConnections();
+        Map<String, int[]> sizes = tableSizes(config, connections);
+
+        for (Map.Entry<String, ModbusConfig.Connection> entry : connections.entrySet()) {
+            String name = entry.getKey();
+            int[] size = sizes.getOrDefault(name, new int[4]);
+
+            FaultyDataHolder holder = new FaultyDataHolder(settings);
+            holder.setHoldingRegisters(new ModbusHoldingRegisters(Math.max(size[0], 1)));
+            holder.setInputRegisters(new ModbusHoldingRegisters(Math.max(size[1], 1)));
+            holder.setCoils(new ModbusCoils(Math.max(size[2], 1)));
+            holder.setDiscreteInputs(new ModbusCoils(Math.max(size[3], 1)));
+
+            ModbusSlave slave = createSlave(name, entry.getValue());
+            slave.setDataHolder(holder);
+            slave.setServerAddress(entry.getValue().slave);
+
+            slaves.put(name, slave);
+            holders.put(name, holder);
+        }
+    }
+
+    void start() throws ModbusIOException {
+        for (ModbusSlave slave : slaves.values()) {
+            slave.listen();
+        }
+
+        if (settings.disconnectEveryMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "modbus-simulator");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(this::disconnect, settings.disconnectEveryMillis,
+                    settings.disconnectEveryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the tables of the slave simulating a connection, to preset or inspect its registers
+     */
+    DataHolder getDataHolder(String connection) {
+        return holders.get(connection);
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+
+        for (ModbusSlave slave : slaves.values()) {
+            try {
+                slave.shutdown();
+            } catch (ModbusIOException e) {
+                LOG.warn("unable to stop simulated slave", e);
+            }
+        }
+    }
+
+    private void disconnect() {
+        try {
+            LOG.info("Disconnecting simulated slaves for {} ms", settings.disconnectMillis);
+            for (ModbusSlave slave : slaves.values()) {
+                slave.shutdown();
+            }
+
+            Thread.sleep(settings.disconnectMillis);
+
+            for (ModbusSlave slave : slaves.values()) {
+                slave.listen();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("unable to cycle simulated slaves", e);
+        }
+    }
+
+    private ModbusSlave createSlave(String name, ModbusConfig.Connection config) throws Exception {
+        switch (config.connection) {
+            case LeshanModbusClient.TCP: {
+                TcpParameters tp = new TcpParameters();
+                tp.setHost(InetAddress.getByName(config.tcpSettings.node));
+                tp.setPort(config.tcpSettings.port);
+                tp.setKeepAlive(config.tcpSettings.keepalive);
+
+                LOG.info("Simulating '{}' on TCP {}:{}", name, config.tcpSettings.node, config.tcpSettings.port);
+
+                return ModbusSlaveFactory.createModbusSlaveTCP(tp);
+            }
+            case LeshanModbusClient.RTU: {
+                SerialParameters sp = new SerialParameters();
+                sp.setDevice(settings.devices.getOrDefault(name, config.serialSettings.deviceName));
+                sp.setBaudRate(SerialPort.BaudRate.getBaudRate(config.serialSettings.baudRate));
+                sp.setDataBits(config.serialSettings.dataBits);
+                sp.setStopBits(config.serialSettings.stopBits);
+                sp.setParity(SerialPort.Parity.getParity(config.serialSettings.parity));
+
+                LOG.info("Simulating '{}' on RTU {}", name, sp.getDevice());
+
+                return ModbusSlaveFactory.createModbusSlaveRTU(sp);
+            }
+            case LeshanModbusClient.ASCII: {
+                SerialParameters sp = new SerialParameters();
+                sp.setDevice(settings.devices.getOrDefault(name, config.asciiSettings.deviceName));
+                sp.setBaudRate(SerialPort.BaudRate.getBaudRate(config.asciiSettings.baudRate));
+                sp.setParity(SerialPort.Parity.getParity(config.asciiSettings.parity));
+
+                LOG.info("Simulating '{}' on ASCII {}", name, sp.getDevice());
+
+                return ModbusSlaveFactory.createModbusSlaveASCII(sp);
+            }
+            default:
+                throw new IllegalStateException("unknown connection '" + config.connection + "' for '" + name + "'");
+        }
+    }
+
+    /**
+     * Sizes the holding registers, input registers, coils and discrete inputs of each connection after the highest
+     * address of its resources.
+     */
+    private static Map<String, int[]> tableSizes(ModbusConfig config,
+            Map<String, ModbusConfig.Connection> connections) {
+        Map<String, int[]> sizes = new HashMap<>();
+
+        for (List<ModbusConfig.Instance> instances : config.objects.values()) {
+            for (ModbusConfig.Instance instance : instances) {
+                for (ModbusConfig.Resource resource : instance.resources.values()) {
+                    String name = resource.connection != null ? resource.connection : instance.connection;
+                    if (name == null) {
+                        name = connections.size() == 1 ?
+                                connections.keySet().iterator().next() :
+                                ModbusConfig.DEFAULT_CONNECTION;
+                    }
+
+                    int table;
+                    switch (resource.type) {
+                        case ModbusSensor.HOLDING_REGISTER:
+                            table = 0;
+                            break;
+                        case ModbusSensor.INPUT_REGISTER:
+                            table = 1;
+                            break;
+                        case ModbusSensor.COIL:
+                            table = 2;
+                            break;
+                        case ModbusSensor.DISCRETE_INPUT:
+                            table = 3;
+                            break;
+                        default:
+                            continue;
+                    }
+
+                    int[] size = sizes.computeIfAbsent(name, key -> new int[4]);
+                    size[table] = Math.max(size[table], resource.startAddress + resource.length());
+                }
+            }
+        }
+
+        return sizes;
+    }
+
+    /**
+     * Tables delaying or failing each request according to the settings.
+     */
+    private static class FaultyDataHolder extends DataHolder {
+
+        private final Settings settings;
+
+        FaultyDataHolder(Settings settings) {
+            this.settings = settings;
+        }
+
+        @Override
+        public int[] readHoldingRegisterRange(int offset, int quantity) throws IllegalDataAddressException {
+            inject();
+            return super.readHoldingRegisterRange(offset, quantity);
+        }
+
+        @Override
+        public int[] readInputRegisterRange(int offset, int quantity) throws IllegalDataAddressException {
+            inject();
+
+            if (settings.drift) {
+                int[] registers = super.readInputRegisterRange(offset, quantity);
+                for (int i = 0; i < registers.length; i++) {
+                    registers[i] = (registers[i] + 1) & 0xFFFF;
+                }
+
+                try {
+                    getInputRegisters().setRange(offset, registers);
+                } catch (IllegalDataValueException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            return super.readInputRegisterRange(offset, quantity);
+        }
+
+        @Override
+        public boolean[] readCoilRange(int offset, int quantity)
+                throws IllegalDataAddressException, IllegalDataValueException {
+            inject();
+            return super.readCoilRange(offset, quantity);
+        }
+
+        @Override
+        public boolean[] readDiscreteInputRange(int offset, int quantity)
+                throws IllegalDataAddressException, IllegalDataValueException {
+            inject();
+
+            if (settings.drift) {
+                boolean[] bits = super.readDiscreteInputRange(offset, quantity);
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = !bits[i];
+                }
+
+                getDiscreteInputs().setRange(offset, bits);
+            }
+
+            return super.readDiscreteInputRange(offset, quantity);
+        }
+
+        @Override
+        public void writeHoldingRegister(int offset, int value)
+                throws IllegalDataAddressException, IllegalDataValueException {
+            inject();
+            super.writeHoldingRegister(offset, value);
+        }
+
+        @Override
+        public void writeHoldingRegisterRange(int offset, int[] range)
+                throws IllegalDataAddressException, IllegalDataValueException {
+            inject();
+            super.writeHoldingRegisterRange(offset, range);
+        }
+
+        @Override
+        public void writeCoil(int offset, boolean value)
+                throws IllegalDataAddressException, IllegalDataValueException {
+            inject();
+            super.writeCoil(offset, value);
+        }
+
+        @Override
+        public void writeCoilRange(int offset, boolean[] range)
+                throws IllegalDataAddressException, IllegalDataValueException {
+            inject();
+            super.writeCoilRange(offset, range);
+        }
+
+        private void inject() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            long delay = settings.latencyMillis;
+            if (settings.jitterMillis > 0) {
+                delay += random.nextLong(settings.jitterMillis + 1);
+            }
+            if (delay > 0) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if (settings.exceptionRate > 0 && random.nextDouble() < settings.exceptionRate) {
+                // any protocol exception is answered by the slave as an exception response with its code
+                ModbusSimulator.<RuntimeException>raise(new ModbusProtocolException(settings.exceptionCode));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> void raise(Throwable e) throws E {
+        throw (E) e;
+    }
+
+    static void addOptions(Options options) {
+        options.addOption("t", "modbus objects", true,
+                "The modbus json configuration file describing the devices to simulate.");
+        options.addOption("l", "latency", true, "Delay (ms) added to every request.\nDefault: 0");
+        options.addOption("j", "jitter", true, "Random delay (ms) added on top of the latency.\nDefault: 0");
+        options.addOption("e", "exceptions", true, "Rate (0-1) of requests answered with an exception.\nDefault: 0");
+        options.addOption("x", "exception-code", true, "Code of the injected exception responses.\nDefault: 6");
+        options.addOption("d", "disconnect-every", true, "Stop listening every given ms.\nDefault: never");
+        options.addOption("D", "disconnect-for", true, "Time (ms) the slaves stay disconnected.\nDefault: 1000");
+        options.addOption(null, "drift", false, "Change input registers and discrete inputs on every read.");
+        options.addOption(Option.builder("y").longOpt("device").numberOfArgs(2).valueSeparator()
+                .desc("Serial device of the simulated side of a connection, as <connection>=<device>.").build());
+    }
+
+    static Settings settings(CommandLine cl) {
+        Settings settings = new Settings();
+        settings.latencyMillis = Long.parseLong(cl.getOptionValue("l", "0"));
+        settings.jitterMillis = Long.parseLong(cl.getOptionValue("j", "0"));
+        settings.exceptionRate = Double.parseDouble(cl.getOptionValue("e", "0"));
+        settings.exceptionCode = ModbusExceptionCode.get(Integer.parseInt(cl.getOptionValue("x", "6")));
+        settings.disconnectEveryMillis = Long.parseLong(cl.getOptionValue("d", "0"));
+        settings.disconnectMillis = Long.parseLong(cl.getOptionValue("D", "1000"));
+        settings.drift = cl.hasOption("drift");
+
+        cl.getOptionProperties("y").forEach((key, value) -> settings.devices.put((String) key, (String) value));
+
+        return settings;
+    }
+
+    static ModbusConfig readConfig(CommandLine cl) throws Exception {
+        if (!cl.hasOption("t")) {
+            throw new ParseException("a modbus configuration file (-t) is required");
+        }
+
+        try (Reader reader = new FileReader(cl.getOptionValue("t"))) {
+            return LeshanModbusClient.readModbusConfig(reader);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("h", "help", false, "Display help information.");
+        addOptions(options);
+
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.setWidth(90);
+        formatter.setOptionComparator(null);
+
+        CommandLine cl;
+        ModbusConfig config;
+        try {
+            cl = new DefaultParser().parse(options, args);
+            if (cl.hasOption("h")) {
+                formatter.printHelp(USAGE, options);
+                return;
+            }
+
+            config = readConfig(cl);
+        } catch (ParseException e) {
+            System.err.println("Parsing failed.  Reason: " + e.getMessage());
+            formatter.printHelp(USAGE, options);
+            return;
+        }
+
+        ModbusSimulator simulator = new ModbusSimulator(config, settings(cl));
+        simulator.start();
+
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            simulator.close();
+            stopped.countDown();
+        }));
+
+        stopped.await();
+    }
+}
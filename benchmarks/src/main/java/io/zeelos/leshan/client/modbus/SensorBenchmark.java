@@ -0,0 +1,118 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.core.node.LwM2mMultipleResource;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.node.LwM2mSingleResource;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.WriteResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link ModbusSensor#read} and {@link ModbusSensor#write} per resource type and quantity, against the
+ * {@link StubSlave}. Writes on input registers and discrete inputs measure the rejection path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorBenchmark {
+
+    private static final int RESOURCE_ID = 26251;
+
+    @Param({ ModbusSensor.HOLDING_REGISTER, ModbusSensor.INPUT_REGISTER, ModbusSensor.COIL,
+            ModbusSensor.DISCRETE_INPUT })
+    String type;
+
+    // 0 stands for a single instance resource
+    @Param({ "0", "10", "100" })
+    int quantity;
+
+    private StubSlave slave;
+    private ModbusChannel channel;
+
+    private ModbusSensor sensor;
+    private ModbusSensor cached;
+    private LwM2mResource value;
+
+    @Setup
+    public void setup() throws Exception {
+        slave = new StubSlave();
+        channel = slave.connect("benchmark");
+
+        ModbusConfig.Resource resource = Fixtures.resource(type, 0, quantity);
+        sensor = Fixtures.sensor(RESOURCE_ID, resource, channel);
+
+        // a polled resource, answered from memory
+        cached = Fixtures.sensor(RESOURCE_ID, resource, channel);
+        cached.update(cached.binding(RESOURCE_ID), resource.table().bits ?
+                new boolean[resource.length()] :
+                new int[resource.length()]);
+
+        value = value(type, quantity);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        channel.stop();
+        slave.close();
+    }
+
+    @Benchmark
+    public ReadResponse read() {
+        return sensor.read(ServerIdentity.SYSTEM, RESOURCE_ID);
+    }
+
+    @Benchmark
+    public ReadResponse readCached() {
+        return cached.read(ServerIdentity.SYSTEM, RESOURCE_ID);
+    }
+
+    @Benchmark
+    public WriteResponse write() {
+        return sensor.write(ServerIdentity.SYSTEM, RESOURCE_ID, value);
+    }
+
+    private static LwM2mResource value(String type, int quantity) {
+        boolean bits = type.equals(ModbusSensor.COIL) || type.equals(ModbusSensor.DISCRETE_INPUT);
+
+        if (quantity == 0) {
+            return bits ?
+                    LwM2mSingleResource.newBooleanResource(RESOURCE_ID, true) :
+                    LwM2mSingleResource.newIntegerResource(RESOURCE_ID, 42);
+        }
+
+        if (bits) {
+            Map<Integer, Boolean> values = new HashMap<>();
+            for (int i = 0; i < quantity; i++) {
+                values.put(i, (i & 1) == 0);
+            }
+
+            return LwM2mMultipleResource.newBooleanResource(RESOURCE_ID, values);
+        }
+
+        Map<Integer, Long> values = new HashMap<>();
+        for (int i = 0; i < quantity; i++) {
+            values.put(i, (long) i);
+        }
+
+        return LwM2mMultipleResource.newIntegerResource(RESOURCE_ID, values);
+    }
+}
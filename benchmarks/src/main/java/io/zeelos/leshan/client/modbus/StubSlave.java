@@ -0,0 +1,71 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.data.DataHolder;
+import com.intelligt.modbus.jlibmodbus.data.ModbusCoils;
+import com.intelligt.modbus.jlibmodbus.data.ModbusHoldingRegisters;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import com.intelligt.modbus.jlibmodbus.master.ModbusMaster;
+import com.intelligt.modbus.jlibmodbus.master.ModbusMasterFactory;
+import com.intelligt.modbus.jlibmodbus.slave.ModbusSlave;
+import com.intelligt.modbus.jlibmodbus.slave.ModbusSlaveFactory;
+import com.intelligt.modbus.jlibmodbus.tcp.TcpParameters;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+/**
+ * Minimal Modbus TCP slave listening on a free loopback port, serving zeroed tables of {@link #SIZE} entries.
+ */
+class StubSlave implements AutoCloseable {
+
+    static final int SIZE = 2000;
+    static final int ADDRESS = 1;
+
+    private final ModbusSlave slave;
+    private final int port;
+
+    StubSlave() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        TcpParameters tp = new TcpParameters();
+        tp.setHost(InetAddress.getLoopbackAddress());
+        tp.setPort(port);
+        tp.setKeepAlive(true);
+
+        DataHolder holder = new DataHolder();
+        holder.setHoldingRegisters(new ModbusHoldingRegisters(SIZE));
+        holder.setInputRegisters(new ModbusHoldingRegisters(SIZE));
+        holder.setCoils(new ModbusCoils(SIZE));
+        holder.setDiscreteInputs(new ModbusCoils(SIZE));
+
+        slave = ModbusSlaveFactory.createModbusSlaveTCP(tp);
+        slave.setDataHolder(holder);
+        slave.setServerAddress(ADDRESS);
+        slave.listen();
+    }
+
+    /**
+     * Opens a started channel to this slave, the way the client does for a non pipelined TCP connection.
+     */
+    ModbusChannel connect(String name) throws Exception {
+        TcpParameters tp = new TcpParameters();
+        tp.setHost(InetAddress.getLoopbackAddress());
+        tp.setPort(port);
+        tp.setKeepAlive(true);
+
+        ModbusMaster master = ModbusMasterFactory.createModbusMasterTCP(tp);
+        master.setResponseTimeout(1000);
+
+        ModbusChannel channel = new MasterChannel(name, ADDRESS, master, BusTime.tcp(1), 256, 10000);
+        channel.start();
+
+        return channel;
+    }
+
+    @Override
+    public void close() throws ModbusIOException {
+        slave.shutdown();
+    }
+}
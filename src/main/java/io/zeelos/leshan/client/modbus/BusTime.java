@@ -0,0 +1,109 @@
+package io.zeelos.leshan.client.modbus;
+
+/**
+ * Estimates how long a request occupies its connection, so that the poller keeps the polls of a connection within
+ * what the line can carry.
+ * <p>
+ * Serial lines are modelled from their speed and the size of the request and response frames, the measured service
+ * times then adding the turnaround time of the devices. On TCP the measured round trips are the whole estimate,
+ * shared by the requests the connection keeps in flight.
+ */
+class BusTime {
+
+    // PDU sizes of the requests and responses which do not depend on the quantity
+    static final int READ_REQUEST = 5;
+    static final int WRITE_SINGLE = 5;
+    static final int WRITE_RESPONSE = 5;
+
+    // weight of the latest measure in the moving average
+    private static final double SMOOTHING = 0.125;
+
+    // 0 when the line speed is unknown
+    private final double nanosPerChar;
+    private final boolean ascii;
+    private final int parallelism;
+
+    // measured time spent on top of the modelled one, -1 until the first measure
+    private volatile long overheadNanos = -1;
+
+    private BusTime(double nanosPerChar, boolean ascii, int parallelism) {
+        this.nanosPerChar = nanosPerChar;
+        this.ascii = ascii;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @param parallelism the number of requests the connection keeps in flight
+     */
+    static BusTime tcp(int parallelism) {
+        return new BusTime(0, false, parallelism);
+    }
+
+    static BusTime rtu(int baudRate, int dataBits, int stopBits, int parity) {
+        return new BusTime(nanosPerChar(baudRate, dataBits == 0 ? 8 : dataBits, stopBits == 0 ? 1 : stopBits, parity),
+                false, 1);
+    }
+
+    static BusTime ascii(int baudRate, int parity) {
+        return new BusTime(nanosPerChar(baudRate, 7, 1, parity), true, 1);
+    }
+
+    static double nanosPerChar(int baudRate, int dataBits, int stopBits, int parity) {
+        // start bit, data bits, optional parity bit and stop bits
+        int bits = 1 + dataBits + (parity != 0 ? 1 : 0) + stopBits;
+
+        return baudRate > 0 ? bits * 1e9 / baudRate : 0;
+    }
+
+    /**
+     * @return the size of the response PDU of a read of the given table and quantity
+     */
+    static int readResponse(ModbusTable table, int quantity) {
+        return 2 + (table.bits ? (quantity + 7) / 8 : quantity * 2);
+    }
+
+    static int writeRegistersRequest(int quantity) {
+        return 6 + quantity * 2;
+    }
+
+    static int writeCoilsRequest(int quantity) {
+        return 6 + (quantity + 7) / 8;
+    }
+
+    /**
+     * @return the time (ns) a read of the given table and quantity keeps the connection busy
+     */
+    long estimateRead(ModbusTable table, int quantity) {
+        return estimate(READ_REQUEST, readResponse(table, quantity));
+    }
+
+    long estimate(int requestPdu, int responsePdu) {
+        return (model(requestPdu, responsePdu) + Math.max(0, overheadNanos)) / parallelism;
+    }
+
+    /**
+     * Records the time a request actually kept the connection busy.
+     *
+     * @param modelNanos what the line model accounted for, see {@link #model(int, int)}
+     */
+    void record(long serviceNanos, long modelNanos) {
+        long sample = Math.max(0, serviceNanos - modelNanos);
+        long average = overheadNanos;
+
+        overheadNanos = average < 0 ? sample : (long) (average + (sample - average) * SMOOTHING);
+    }
+
+    long model(int requestPdu, int responsePdu) {
+        if (nanosPerChar == 0) {
+            return 0;
+        }
+
+        if (ascii) {
+            // ':' + address + pdu + LRC in hexadecimal, then CR LF
+            return (long) ((4 * (requestPdu + responsePdu) + 14) * nanosPerChar);
+        }
+
+        // address + pdu + CRC, each frame followed by a 3.5 characters silence
+        return (long) ((requestPdu + responsePdu + 6 + 7) * nanosPerChar);
+    }
+}
@@ -0,0 +1,85 @@
+package io.zeelos.leshan.client.modbus;
+
+/**
+ * Decides which changes of a resource read in the background are worth notifying, from the settings of the resource
+ * in the modbus configuration, before the notification attributes of the server apply:
+ * <ul>
+ * <li>deadband / deadbandPercent: changes from the last notified value within the band (absolute, or percent of that
+ * value) are jitter, not notified;</li>
+ * <li>rateOfChange: a value moving faster than this (units per second) notifies even within the bands;</li>
+ * <li>minNotifyMillis: minimum time between two notifications, a change held back being notified by the first sample
+ * after it if still out of the bands.</li>
+ * </ul>
+ * Runs on every sample, on primitive values only.
+ */
+class ChangeFilter {
+
+    private final double deadband;
+    private final double deadbandPercent;
+    private final double rateOfChange;
+    private final long minNotifyMillis;
+
+    // last notified value, NaN until a first sample is known
+    private double reference = Double.NaN;
+    private long lastNotify;
+
+    // previous sample, for the rate of change
+    private double previous = Double.NaN;
+    private long previousTime;
+
+    private ChangeFilter(ModbusConfig.Resource resource) {
+        this.deadband = resource.deadband;
+        this.deadbandPercent = resource.deadbandPercent;
+        this.rateOfChange = resource.rateOfChange;
+        this.minNotifyMillis = resource.minNotifyMillis;
+    }
+
+    /**
+     * @return the filter of a resource, null if it has no filtering setting
+     */
+    static ChangeFilter of(ModbusConfig.Resource resource) {
+        if (resource.deadband <= 0 && resource.deadbandPercent <= 0 && resource.rateOfChange <= 0
+                && resource.minNotifyMillis <= 0) {
+            return null;
+        }
+
+        return new ChangeFilter(resource);
+    }
+
+    /**
+     * @param value the sampled value, NaN for values without numeric meaning (multiple instances)
+     * @param changed whether the sample differs from the previous one
+     * @return whether the sample is a change to notify
+     */
+    synchronized boolean onSample(double value, boolean changed, long now) {
+        double rate = Double.isNaN(previous) || now <= previousTime ?
+                0 :
+                Math.abs(value - previous) * 1000 / (now - previousTime);
+        previous = value;
+        previousTime = now;
+
+        if (Double.isNaN(value)) {
+            return changed && notify(value, now);
+        }
+        if (Double.isNaN(reference)) {
+            // first sample
+            return notify(value, now);
+        }
+
+        double delta = Math.abs(value - reference);
+        boolean significant = delta > 0 && delta > deadband && delta * 100 > Math.abs(reference) * deadbandPercent;
+        boolean fast = rateOfChange > 0 && rate >= rateOfChange;
+
+        return (significant || fast && delta > 0) && notify(value, now);
+    }
+
+    private boolean notify(double value, long now) {
+        if (lastNotify != 0 && now - lastNotify < minNotifyMillis) {
+            return false;
+        }
+
+        reference = value;
+        lastNotify = now;
+        return true;
+    }
+}
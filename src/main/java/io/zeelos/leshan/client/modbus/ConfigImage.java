@@ -0,0 +1,405 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.model.ResourceModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A precompiled form of the modbus configuration and of the object models, written by the {@code -compile} option
+ * and memory-mapped on startup in place of the JSON configuration and the DDF files.
+ * <p>
+ * Nothing is decoded upfront but the top-level settings: instances are decoded when accessed, and models only for the
+ * objects the client exposes. Resources are fixed-size records, strings being shared in a table.
+ */
+class ConfigImage {
+
+    // "MBC" followed by the version of the format
+    private static final int MAGIC = 0x4D424300;
+    private static final int VERSION = 2;
+
+    // header: magic, then the offsets of the settings, strings, objects, instances, models and model records
+    private static final int HEADER_LENGTH = 28;
+
+    // id, type, start address, quantity, poll period, connection, slave, data type, flags, scale, offset, bit,
+    // deadband, deadband percent, rate of change, min notify period
+    private static final int RESOURCE_LENGTH = 89;
+
+    private static final int NULL = -1;
+    private static final int NO_SLAVE = Integer.MIN_VALUE;
+
+    private static final byte WORD_SWAP = 1;
+    private static final byte BYTE_SWAP = 2;
+
+    private final ByteBuffer buffer;
+    private final int strings;
+    private final int objects;
+    private final int instances;
+    private final int models;
+    private final int modelRecords;
+
+    private ConfigImage(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.strings = buffer.getInt(8);
+        this.objects = buffer.getInt(12);
+        this.instances = buffer.getInt(16);
+        this.models = buffer.getInt(20);
+        this.modelRecords = buffer.getInt(24);
+    }
+
+    static boolean isImage(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = new byte[4];
+            return in.read(magic) == 4 && (ByteBuffer.wrap(magic).getInt() & ~0xFF) == MAGIC;
+        }
+    }
+
+    static ConfigImage open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_LENGTH || (buffer.getInt(0) & ~0xFF) != MAGIC) {
+                throw new IOException(file + " is not a compiled modbus configuration");
+            }
+            if ((buffer.getInt(0) & 0xFF) != VERSION) {
+                throw new IOException(file + " was compiled by another version, compile it again");
+            }
+
+            return new ConfigImage(buffer);
+        }
+    }
+
+    /**
+     * @return the configuration, which instances are decoded from the image each time they are accessed
+     */
+    ModbusConfig config() {
+        int settings = buffer.getInt(4);
+        ModbusConfig config = new Gson().fromJson(string(settings), ModbusConfig.class);
+        config.image = this;
+
+        config.objects = new LinkedHashMap<>();
+        int count = buffer.getInt(objects);
+        for (int i = 0; i < count; i++) {
+            int position = objects + 4 + i * 12;
+            config.objects.put(String.valueOf(buffer.getInt(position)),
+                    new Instances(buffer.getInt(position + 4), buffer.getInt(position + 8)));
+        }
+
+        return config;
+    }
+
+    /**
+     * @return the models of the given objects, skipping the ones the image does not have
+     */
+    List<ObjectModel> models(Collection<Integer> objectIds) {
+        Map<Integer, Integer> offsets = new HashMap<>();
+        int count = buffer.getInt(models);
+        for (int i = 0; i < count; i++) {
+            offsets.put(buffer.getInt(models + 4 + i * 8), buffer.getInt(models + 8 + i * 8));
+        }
+
+        List<ObjectModel> result = new ArrayList<>();
+        for (Integer objectId : objectIds) {
+            Integer offset = offsets.get(objectId);
+            if (offset != null) {
+                result.add(model(objectId, modelRecords + offset));
+            }
+        }
+
+        return result;
+    }
+
+    private ObjectModel model(int objectId, int position) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+
+        String name = string(record.getInt());
+        String description = string(record.getInt());
+        String version = string(record.getInt());
+        boolean multiple = record.get() != 0;
+        boolean mandatory = record.get() != 0;
+
+        int count = record.getInt();
+        List<ResourceModel> resources = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int id = record.getInt();
+            String resourceName = string(record.getInt());
+            ResourceModel.Operations operations = ResourceModel.Operations.values()[record.get()];
+            boolean resourceMultiple = record.get() != 0;
+            boolean resourceMandatory = record.get() != 0;
+            ResourceModel.Type type = ResourceModel.Type.values()[record.get()];
+
+            resources.add(new ResourceModel(id, resourceName, operations, resourceMultiple, resourceMandatory, type,
+                    string(record.getInt()), string(record.getInt()), string(record.getInt())));
+        }
+
+        return new ObjectModel(objectId, name, description, version, multiple, mandatory, resources);
+    }
+
+    private ModbusConfig.Instance instance(int position) {
+        ModbusConfig.Instance instance = new ModbusConfig.Instance();
+        instance.connection = string(buffer.getInt(position));
+        int slave = buffer.getInt(position + 4);
+        instance.slave = slave == NO_SLAVE ? null : slave;
+
+        int count = buffer.getInt(position + 8);
+        for (int i = 0; i < count; i++) {
+            int record = position + 12 + i * RESOURCE_LENGTH;
+
+            ModbusConfig.Resource resource = new ModbusConfig.Resource();
+            resource.type = string(buffer.getInt(record + 4));
+            resource.startAddress = buffer.getInt(record + 8);
+            resource.quantity = buffer.getInt(record + 12);
+            resource.pollMillis = buffer.getLong(record + 16);
+            resource.connection = string(buffer.getInt(record + 24));
+            int resourceSlave = buffer.getInt(record + 28);
+            resource.slave = resourceSlave == NO_SLAVE ? null : resourceSlave;
+            resource.dataType = string(buffer.getInt(record + 32));
+            byte flags = buffer.get(record + 36);
+            resource.wordSwap = (flags & WORD_SWAP) != 0;
+            resource.byteSwap = (flags & BYTE_SWAP) != 0;
+            resource.scale = buffer.getDouble(record + 37);
+            resource.offset = buffer.getDouble(record + 45);
+            resource.bit = buffer.getInt(record + 53);
+            resource.deadband = buffer.getDouble(record + 57);
+            resource.deadbandPercent = buffer.getDouble(record + 65);
+            resource.rateOfChange = buffer.getDouble(record + 73);
+            resource.minNotifyMillis = buffer.getLong(record + 81);
+
+            instance.resources.put(String.valueOf(buffer.getInt(record)), resource);
+        }
+
+        return instance;
+    }
+
+    private String string(int index) {
+        if (index == NULL) {
+            return null;
+        }
+
+        int offset = buffer.getInt(strings + 4 + index * 4);
+        int length = buffer.getInt(offset);
+
+        byte[] bytes = new byte[length];
+        ByteBuffer data = buffer.duplicate();
+        data.position(offset + 4);
+        data.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The instances of an object, decoded on access.
+     */
+    private class Instances extends AbstractList<ModbusConfig.Instance> {
+        private final int size;
+        private final int offsets;
+
+        Instances(int size, int offsets) {
+            this.size = size;
+            this.offsets = offsets;
+        }
+
+        @Override
+        public ModbusConfig.Instance get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(String.valueOf(index));
+            }
+
+            return instance(instances + buffer.getInt(instances + offsets + index * 4));
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Compiles a configuration and models into an image, replacing the file atomically as it may be mapped by a
+     * running client.
+     */
+    static void write(ModbusConfig config, List<ObjectModel> models, Path file) throws IOException {
+        Strings strings = new Strings();
+
+        // the settings, without the objects
+        JsonObject settings = new Gson().toJsonTree(config).getAsJsonObject();
+        settings.remove("objects");
+        int settingsIndex = strings.index(settings.toString());
+
+        // each object: its id, instance count and the offset of its instance offsets in the instances section
+        Section objects = new Section();
+        Section instances = new Section();
+        Map<String, List<ModbusConfig.Instance>> configured = config.objects != null ? config.objects : new HashMap<>();
+        objects.out.writeInt(configured.size());
+
+        List<int[]> offsets = new ArrayList<>();
+        for (Map.Entry<String, List<ModbusConfig.Instance>> entry : configured.entrySet()) {
+            int[] instanceOffsets = new int[entry.getValue().size()];
+            for (int i = 0; i < instanceOffsets.length; i++) {
+                instanceOffsets[i] = instances.size();
+                writeInstance(instances.out, entry.getValue().get(i), strings);
+            }
+            offsets.add(instanceOffsets);
+        }
+        int index = 0;
+        for (Map.Entry<String, List<ModbusConfig.Instance>> entry : configured.entrySet()) {
+            int[] instanceOffsets = offsets.get(index++);
+
+            objects.out.writeInt(Integer.parseInt(entry.getKey()));
+            objects.out.writeInt(instanceOffsets.length);
+            objects.out.writeInt(instances.size());
+            for (int offset : instanceOffsets) {
+                instances.out.writeInt(offset);
+            }
+        }
+
+        Section modelIndex = new Section();
+        Section modelRecords = new Section();
+        modelIndex.out.writeInt(models.size());
+        for (ObjectModel model : models) {
+            modelIndex.out.writeInt(model.id);
+            modelIndex.out.writeInt(modelRecords.size());
+            writeModel(modelRecords.out, model, strings);
+        }
+
+        // the strings go last, their offsets being absolute
+        int objectsOffset = HEADER_LENGTH;
+        int instancesOffset = objectsOffset + objects.size();
+        int modelsOffset = instancesOffset + instances.size();
+        int modelRecordsOffset = modelsOffset + modelIndex.size();
+        int stringsOffset = modelRecordsOffset + modelRecords.size();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+            out.writeInt(MAGIC | VERSION);
+            out.writeInt(settingsIndex);
+            out.writeInt(stringsOffset);
+            out.writeInt(objectsOffset);
+            out.writeInt(instancesOffset);
+            out.writeInt(modelsOffset);
+            out.writeInt(modelRecordsOffset);
+
+            objects.writeTo(out);
+            instances.writeTo(out);
+            modelIndex.writeTo(out);
+            modelRecords.writeTo(out);
+            strings.writeTo(out, stringsOffset);
+        }
+
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeInstance(DataOutputStream out, ModbusConfig.Instance instance, Strings strings)
+            throws IOException {
+        out.writeInt(strings.index(instance.connection));
+        out.writeInt(instance.slave != null ? instance.slave : NO_SLAVE);
+        out.writeInt(instance.resources.size());
+
+        for (Map.Entry<String, ModbusConfig.Resource> entry : instance.resources.entrySet()) {
+            ModbusConfig.Resource resource = entry.getValue();
+
+            out.writeInt(Integer.parseInt(entry.getKey()));
+            out.writeInt(strings.index(resource.type));
+            out.writeInt(resource.startAddress);
+            out.writeInt(resource.quantity);
+            out.writeLong(resource.pollMillis);
+            out.writeInt(strings.index(resource.connection));
+            out.writeInt(resource.slave != null ? resource.slave : NO_SLAVE);
+            out.writeInt(strings.index(resource.dataType));
+            out.writeByte((resource.wordSwap ? WORD_SWAP : 0) | (resource.byteSwap ? BYTE_SWAP : 0));
+            out.writeDouble(resource.scale);
+            out.writeDouble(resource.offset);
+            out.writeInt(resource.bit);
+            out.writeDouble(resource.deadband);
+            out.writeDouble(resource.deadbandPercent);
+            out.writeDouble(resource.rateOfChange);
+            out.writeLong(resource.minNotifyMillis);
+        }
+    }
+
+    private static void writeModel(DataOutputStream out, ObjectModel model, Strings strings) throws IOException {
+        out.writeInt(strings.index(model.name));
+        out.writeInt(strings.index(model.description));
+        out.writeInt(strings.index(model.version));
+        out.writeBoolean(model.multiple);
+        out.writeBoolean(model.mandatory);
+
+        out.writeInt(model.resources.size());
+        for (ResourceModel resource : model.resources.values()) {
+            out.writeInt(resource.id);
+            out.writeInt(strings.index(resource.name));
+            out.writeByte(resource.operations.ordinal());
+            out.writeBoolean(resource.multiple);
+            out.writeBoolean(resource.mandatory);
+            out.writeByte(resource.type.ordinal());
+            out.writeInt(strings.index(resource.rangeEnumeration));
+            out.writeInt(strings.index(resource.units));
+            out.writeInt(strings.index(resource.description));
+        }
+    }
+
+    private static class Section {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+
+        int size() {
+            return bytes.size();
+        }
+
+        void writeTo(DataOutputStream target) throws IOException {
+            bytes.writeTo(target);
+        }
+    }
+
+    // each distinct string once, referenced by index
+    private static class Strings {
+        final Map<String, Integer> indexes = new HashMap<>();
+        final List<byte[]> values = new ArrayList<>();
+
+        int index(String value) {
+            if (value == null) {
+                return NULL;
+            }
+
+            return indexes.computeIfAbsent(value, k -> {
+                values.add(k.getBytes(StandardCharsets.UTF_8));
+                return values.size() - 1;
+            });
+        }
+
+        // count, absolute offset of each string, then each string as its length and UTF-8 bytes
+        void writeTo(DataOutputStream out, int position) throws IOException {
+            out.writeInt(values.size());
+
+            int offset = position + 4 + values.size() * 4;
+            for (byte[] value : values) {
+                out.writeInt(offset);
+                offset += 4 + value.length;
+            }
+            for (byte[] value : values) {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the modbus configuration file and applies its changes to the running client, without re-registering:
+ * <ul>
+ * <li>connections which settings changed are reopened, new ones opened and removed ones closed, the others being
+ * left untouched;</li>
+ * <li>instances which mapping changed, or which use a reopened connection, are replaced on their enabler, keeping
+ * their observations; new instances are added and removed ones deleted, with a registration update;</li>
+ * <li>only the poll blocks reading replaced instances are planned again.</li>
+ * </ul>
+ * Objects which were not in the configuration at startup, and the other top-level settings, need a restart.
+ */
+class ConfigReloader {
+
+    private static final Logger log = LoggerFactory.getLogger(ConfigReloader.class);
+
+    // time (ms) without changes to the file before it is reloaded, editors often write it in several steps
+    private static final long SETTLE_MILLIS = 500;
+
+    // the settings which are reloaded, those of the single connection being diffed as the default connection
+    private static final String[] RELOADED = { "connections", "objects", "connection", "slave", "tcpSettings",
+            "serialSettings", "asciiSettings", "responseTimeout", "writeWindowMillis" };
+
+    private final Gson gson = new Gson();
+
+    private final Path file;
+    private final LeshanClient client;
+    private final Map<String, ModbusChannel> channels;
+    private final ModbusPoller poller;
+    private final ValueStore store;
+
+    private ModbusConfig config;
+
+    private WatchService watcher;
+    private Thread thread;
+
+    ConfigReloader(Path file, ModbusConfig config, LeshanClient client, Map<String, ModbusChannel> channels,
+            ModbusPoller poller, ValueStore store) {
+        this.file = file.toAbsolutePath();
+        this.config = config;
+        this.client = client;
+        this.channels = channels;
+        this.poller = poller;
+        this.store = store;
+    }
+
+    void start() throws IOException {
+        watcher = file.getFileSystem().newWatchService();
+        // the directory, as editors often replace the file
+        file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = new Thread(this::watch, "modbus-config");
+        thread.setDaemon(true);
+        thread.start();
+
+        log.info("Watching {} for changes", file);
+    }
+
+    void stop() {
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException e) {
+                log.debug("unable to close the watcher of {}", file, e);
+            }
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!changed(watcher.take())) {
+                    continue;
+                }
+
+                // wait for the writes to settle
+                WatchKey key;
+                while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    changed(key);
+                }
+
+                reload();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            changed |= file.getFileName().equals(event.context());
+        }
+        key.reset();
+
+        return changed;
+    }
+
+    private void reload() {
+        ModbusConfig next;
+        try {
+            next = LeshanModbusClient.readModbusConfig(file);
+        } catch (Exception e) {
+            log.error("ignoring the changes of {}, unable to read it", file, e);
+            return;
+        }
+
+        if (next == null || next.objects == null) {
+            log.error("ignoring the changes of {}, no objects found", file);
+            return;
+        }
+
+        try {
+            apply(next);
+        } catch (Exception e) {
+            log.error("unable to apply the changes of {}", file, e);
+        }
+    }
+
+    /**
+     * Diffs the new configuration against the running one and applies the differences. Nothing is applied if the new
+     * connections or instances cannot be created.
+     */
+    synchronized void apply(ModbusConfig next) throws Exception {
+        if (!others(config).equals(others(next))) {
+            log.warn("only connections and objects are reloaded, other settings need a restart");
+        }
+
+        Map<String, ModbusChannel> opened = new LinkedHashMap<>();
+        Map<String, ModbusChannel> nextChannels;
+        Set<ModbusChannel> closed;
+        List<Change> changes;
+        try {
+            nextChannels = openConnections(next.allConnections(), opened);
+            closed = closed(nextChannels);
+            changes = diffObjects(next.objects, nextChannels, closed);
+        } catch (Exception e) {
+            opened.values().forEach(ModbusChannel::stop);
+            throw e;
+        }
+
+        channels.clear();
+        channels.putAll(nextChannels);
+        opened.keySet().forEach(name -> log.info("Connection '{}' opened", name));
+
+        applyObjects(changes, closed);
+
+        // the connections no longer used by anything can only be closed now
+        closed.forEach(ModbusChannel::stop);
+
+        config = next;
+    }
+
+    /**
+     * Opens the connections which are new or which settings changed.
+     *
+     * @return the connections of the new configuration, the unchanged ones being the running ones
+     */
+    private Map<String, ModbusChannel> openConnections(Map<String, ModbusConfig.Connection> next,
+            Map<String, ModbusChannel> opened) throws Exception {
+        Map<String, ModbusConfig.Connection> current = config.allConnections();
+
+        Map<String, ModbusChannel> nextChannels = new LinkedHashMap<>();
+        for (Map.Entry<String, ModbusConfig.Connection> entry : next.entrySet()) {
+            String name = entry.getKey();
+            ModbusConfig.Connection connection = current.get(name);
+
+            ModbusChannel channel = channels.get(name);
+            if (channel == null || connection == null
+                    || !gson.toJsonTree(connection).equals(gson.toJsonTree(entry.getValue()))) {
+                channel = LeshanModbusClient.createAndStartChannel(name, entry.getValue());
+                opened.put(name, channel);
+            }
+            nextChannels.put(name, channel);
+        }
+
+        return nextChannels;
+    }
+
+    /**
+     * @return the running connections which are not part of the given ones, to be closed
+     */
+    private Set<ModbusChannel> closed(Map<String, ModbusChannel> nextChannels) {
+        Set<ModbusChannel> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        kept.addAll(nextChannels.values());
+
+        Set<ModbusChannel> closed = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (ModbusChannel channel : channels.values()) {
+            if (!kept.contains(channel)) {
+                closed.add(channel);
+            }
+        }
+
+        return closed;
+    }
+
+    /**
+     * Creates the instances which are new, which mapping changed or which use a reopened connection.
+     */
+    private List<Change> diffObjects(Map<String, List<ModbusConfig.Instance>> next,
+            Map<String, ModbusChannel> nextChannels, Set<ModbusChannel> closed) {
+        List<Change> changes = new ArrayList<>();
+
+        Set<String> objectIds = new TreeSet<>(next.keySet());
+        objectIds.addAll(config.objects.keySet());
+        for (String key : objectIds) {
+            int objectId = Integer.parseInt(key);
+            List<ModbusConfig.Instance> before = config.objects.getOrDefault(key, Collections.emptyList());
+            List<ModbusConfig.Instance> after = next.getOrDefault(key, Collections.emptyList());
+
+            LwM2mObjectEnabler found = client.getObjectEnablers().get(objectId);
+            if (!(found instanceof ModbusObjectEnabler)) {
+                log.warn("object {} was not bound to modbus at startup, restart to apply its changes", objectId);
+                continue;
+            }
+            ModbusObjectEnabler enabler = (ModbusObjectEnabler) found;
+
+            for (int id = 0; id < Math.max(before.size(), after.size()); id++) {
+                ModbusSensor current = (ModbusSensor) enabler.getInstance(id);
+
+                if (id >= after.size()) {
+                    changes.add(new Change(enabler, id, current, null));
+                } else if (current == null || id >= before.size() || usesAny(current, closed)
+                        || !gson.toJsonTree(before.get(id)).equals(gson.toJsonTree(after.get(id)))) {
+                    ModbusSensor sensor = new ModbusSensor(id, after.get(id), nextChannels, poller, store);
+                    sensor.setModel(enabler.getObjectModel());
+
+                    changes.add(new Change(enabler, id, current, sensor));
+                }
+            }
+        }
+
+        return changes;
+    }
+
+    private void applyObjects(List<Change> changes, Set<ModbusChannel> closed) {
+        List<ModbusSensor> removed = new ArrayList<>();
+        List<ModbusSensor> added = new ArrayList<>();
+        boolean registration = false;
+
+        // before the new sensors are read or polled, which store their values under the same keys
+        for (Change change : changes) {
+            if (change.current != null) {
+                forget(change.current, change.sensor, closed);
+            }
+        }
+
+        for (Change change : changes) {
+            String path = "/" + change.enabler.getId() + "/" + change.id;
+            if (change.sensor == null) {
+                change.enabler.removeInstance(change.id);
+                log.info("Instance {} removed", path);
+            } else {
+                change.enabler.addInstance(change.id, change.sensor);
+                added.add(change.sensor);
+                log.info("Instance {} {}", path, change.current != null ? "remapped" : "added");
+            }
+
+            if (change.current != null) {
+                removed.add(change.current);
+            }
+            registration |= change.current == null || change.sensor == null;
+        }
+
+        poller.replace(removed, added);
+
+        for (Change change : changes) {
+            if (change.current != null && change.sensor != null) {
+                change.sensor.inherit(change.current);
+            }
+        }
+
+        if (registration) {
+            // the object links changed
+            client.triggerRegistrationUpdate();
+        }
+    }
+
+    // drops the last known values of a removed instance (no new sensor), or which may no longer match what its
+    // resources read
+    private void forget(ModbusSensor previous, ModbusSensor sensor, Set<ModbusChannel> closed) {
+        if (store == null) {
+            return;
+        }
+
+        for (ResourceBinding old : previous.getBindings()) {
+            ResourceBinding binding = sensor != null ? sensor.binding(old.id) : null;
+            if (binding == null || closed.contains(old.channel) || old.slave != binding.slave
+                    || !gson.toJsonTree(old.resource).equals(gson.toJsonTree(binding.resource))) {
+                store.remove(previous.key(old));
+            }
+        }
+    }
+
+    private static boolean usesAny(ModbusSensor sensor, Set<ModbusChannel> channels) {
+        return sensor.getBindings().stream().anyMatch(binding -> channels.contains(binding.channel));
+    }
+
+    private JsonElement others(ModbusConfig config) {
+        JsonObject json = gson.toJsonTree(config).getAsJsonObject();
+        for (String name : RELOADED) {
+            json.remove(name);
+        }
+
+        return json;
+    }
+
+    // an instance added (no current one), removed (no new one) or remapped
+    private static class Change {
+        final ModbusObjectEnabler enabler;
+        final int id;
+        final ModbusSensor current;
+        final ModbusSensor sensor;
+
+        Change(ModbusObjectEnabler enabler, int id, ModbusSensor current, ModbusSensor sensor) {
+            this.enabler = enabler;
+            this.id = id;
+            this.current = current;
+            this.sensor = sensor;
+        }
+    }
+}
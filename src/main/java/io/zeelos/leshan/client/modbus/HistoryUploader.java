@@ -0,0 +1,156 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.google.gson.stream.JsonWriter;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads the samples of a {@link SampleBuffer} in SenML JSON batches, each one a single CoAP POST sent from the
+ * endpoint of the LWM2M client, so that a secured client reuses its DTLS session.
+ * <p>
+ * Samples are only committed once the server acknowledged their batch: while the link is down they stay in the
+ * buffer and the upload resumes on the next period.
+ */
+class HistoryUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(HistoryUploader.class);
+
+    // application/senml+json
+    static final int SENML_JSON = 110;
+
+    private final SampleBuffer buffer;
+    private final LeshanClient client;
+    private final URI uri;
+    private final int batchSize;
+    private final long uploadMillis;
+
+    private final ScheduledExecutorService scheduler;
+
+    HistoryUploader(SampleBuffer buffer, LeshanClient client, URI uri, int batchSize, long uploadMillis) {
+        this.buffer = buffer;
+        this.client = client;
+        this.uri = uri;
+        this.batchSize = Math.max(1, batchSize);
+        this.uploadMillis = uploadMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "modbus-history");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        scheduler.scheduleWithFixedDelay(this::upload, uploadMillis, uploadMillis, TimeUnit.MILLISECONDS);
+
+        log.info("Uploading buffered samples to {} every {} ms", uri, uploadMillis);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    private void upload() {
+        CoapClient coap = new CoapClient(uri);
+        coap.setEndpoint(endpoint());
+        coap.setTimeout(uploadMillis);
+
+        int uploaded = 0;
+        try {
+            SampleBuffer.Batch batch;
+            while ((batch = buffer.peek(batchSize)).size() > 0) {
+                CoapResponse response = coap.post(senml(batch), SENML_JSON);
+
+                if (response == null || !response.isSuccess()) {
+                    log.debug("upload of {} samples to {} failed: {}", batch.size(), uri,
+                            response == null ? "no response" : response.getCode());
+                    break;
+                }
+
+                buffer.commit(batch);
+                uploaded += batch.size();
+            }
+        } catch (Exception e) {
+            log.debug("upload to {} failed", uri, e);
+        } finally {
+            coap.shutdown();
+        }
+
+        if (uploaded > 0) {
+            log.info("Uploaded {} buffered samples to {}", uploaded, uri);
+        }
+    }
+
+    /**
+     * @return the endpoint of the client matching the scheme of the upload URI, null for the default one
+     */
+    private Endpoint endpoint() {
+        for (Endpoint endpoint : client.getCoapServer().getEndpoints()) {
+            if (uri.getScheme().equals(endpoint.getUri().getScheme())) {
+                return endpoint;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Encodes a batch as SenML records: the base name is only repeated when the resource changes, and times are
+     * relative to the base time of the first record.
+     */
+    static String senml(SampleBuffer.Batch batch) throws IOException {
+        StringWriter out = new StringWriter();
+        JsonWriter json = new JsonWriter(out);
+
+        Long baseTime = null;
+        json.beginArray();
+        for (Map.Entry<SampleBuffer.Ring, List<SampleBuffer.Sample>> entry : batch.samples.entrySet()) {
+            SampleBuffer.Ring ring = entry.getKey();
+            boolean bool = ring.binding.type() == ResourceModel.Type.BOOLEAN;
+
+            boolean first = true;
+            for (SampleBuffer.Sample sample : entry.getValue()) {
+                json.beginObject();
+                if (first) {
+                    json.name("bn").value(path(ring.key));
+                    first = false;
+                }
+                if (baseTime == null) {
+                    baseTime = sample.timestamp;
+                    json.name("bt").value(sample.timestamp / 1000.0);
+                } else {
+                    json.name("t").value((sample.timestamp - baseTime) / 1000.0);
+                }
+                if (bool) {
+                    json.name("vb").value(sample.value != 0);
+                } else if (sample.value == Math.rint(sample.value) && Math.abs(sample.value) < 1e15) {
+                    json.name("v").value((long) sample.value);
+                } else {
+                    json.name("v").value(sample.value);
+                }
+                json.endObject();
+            }
+        }
+        json.endArray();
+        json.flush();
+
+        return out.toString();
+    }
+
+    private static String path(long key) {
+        return "/" + (key >>> 32) + "/" + ((key >>> 16) & 0xFFFF) + "/" + (key & 0xFFFF);
+    }
+}
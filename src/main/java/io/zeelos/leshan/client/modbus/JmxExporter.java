@@ -0,0 +1,120 @@
+package io.zeelos.leshan.client.modbus;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exposes the metrics as the read-only attributes of a single MBean, one attribute per sample named after the sample
+ * and its labels, e.g. {@code modbus_requests_total{connection="default",slave="1",outcome="ok"}}.
+ */
+class JmxExporter implements MetricsExporter, DynamicMBean {
+
+    static final String OBJECT_NAME = "io.zeelos.leshan.client.modbus:type=Metrics";
+
+    private final Metrics metrics;
+
+    private ObjectName name;
+
+    JmxExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void start() throws Exception {
+        name = new ObjectName(OBJECT_NAME);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    @Override
+    public void stop() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (name != null && server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            // shutting down anyway
+        }
+    }
+
+    private Map<String, Double> samples() {
+        Map<String, Double> samples = new LinkedHashMap<>();
+        metrics.collect(new Metrics.Visitor() {
+            @Override
+            public void family(String name, String type, String help) {
+            }
+
+            @Override
+            public void sample(String name, String labels, double value) {
+                samples.put(labels.isEmpty() ? name : name + "{" + labels + "}", value);
+            }
+        });
+
+        return samples;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Double value = samples().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return value;
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Double> samples = samples();
+
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Double value = samples.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        // metrics are read-only
+        throw new AttributeNotFoundException("no writable attribute " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        // the series grow as connections, slaves and objects are used
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String sample : samples().keySet()) {
+            attributes.add(new MBeanAttributeInfo(sample, Double.class.getName(), sample, true, false, false));
+        }
+
+        return new MBeanInfo(getClass().getName(), "Modbus bridge metrics",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
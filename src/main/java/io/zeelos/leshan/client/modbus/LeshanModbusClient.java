@@ -30,11 +30,17 @@ import static org.eclipse.leshan.client.object.Security.x509;
 import static org.eclipse.leshan.client.object.Security.x509Bootstrap;
 
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.CertificateEncodingException;
@@ -42,9 +48,12 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.intelligt.modbus.jlibmodbus.Modbus;
 import com.intelligt.modbus.jlibmodbus.master.ModbusMaster;
 import com.intelligt.modbus.jlibmodbus.master.ModbusMasterFactory;
@@ -84,14 +93,15 @@ public class LeshanModbusClient {
 
     private static final Logger LOG = LoggerFactory.getLogger(LeshanModbusClient.class);
 
-    private final static String[] modelPaths = new String[] { "3303.xml", "26241.xml" };
+    final static String[] modelPaths = new String[] { "3303.xml", "26241.xml" };
 
     private final static String DEFAULT_ENDPOINT = "LeshanModbusClient";
     private final static String USAGE = "java -jar leshan-client-modbus.jar [OPTION]";
 
-    private static final String TCP = "tcp";
-    private static final String RTU = "rtu";
-    private static final String ASCII = "ascii";
+    static final String TCP = "tcp";
+    static final String RTU = "rtu";
+    static final String RTU_OVER_TCP = "rtu-over-tcp";
+    static final String ASCII = "ascii";
 
     private final static String DEFAULT_DEMO_CONFIG_FILENAME = "modbus.json";
 
@@ -157,6 +167,10 @@ public class LeshanModbusClient {
                 "A folder which contains object models in OMA DDF(.xml) format.");
         options.addOption("t", "modbus objects", true,
                 "The modbus json configuration file describing the modbus bindings");
+        options.addOption("w", "watch", false,
+                "Apply the changes of the modbus configuration file (see -t option) while running.");
+        options.addOption("c", "compile", true,
+                "Compile the modbus configuration (see -t option) and the object models (see -m option) into the given binary file and exit.\n The binary file loads faster than the json one with -t, for large register maps.");
 
         HelpFormatter formatter = new HelpFormatter();
         formatter.setWidth(90);
@@ -334,6 +348,11 @@ public class LeshanModbusClient {
                 return;
             }
         }
+        if (cl.hasOption("w") && !cl.hasOption("t")) {
+            System.err.println("Watching the modbus configuration (-w) requires its file (-t)");
+            formatter.printHelp(USAGE, options);
+            return;
+        }
 
         // Get models folder
         String modelsFolderPath = cl.getOptionValue("m");
@@ -342,25 +361,28 @@ public class LeshanModbusClient {
 
         try {
             // load modbus config
-            Gson gson = new Gson();
-
-            Reader reader;
+            ModbusConfig modbusConfig;
             if (modbusConfigFilename == null) {
                 LOG.info("Loading default demo Modbus configuration.");
-                reader = new InputStreamReader(
-                        ClassLoader.getSystemClassLoader().getResourceAsStream(DEFAULT_DEMO_CONFIG_FILENAME));
+                modbusConfig = readModbusConfig(new InputStreamReader(
+                        ClassLoader.getSystemClassLoader().getResourceAsStream(DEFAULT_DEMO_CONFIG_FILENAME)));
             } else {
                 LOG.info("Loading Modbus configuration from '{}'", modbusConfigFilename);
-                reader = new FileReader(modbusConfigFilename);
+                modbusConfig = readModbusConfig(Paths.get(modbusConfigFilename));
+            }
+
+            if (cl.hasOption("c")) {
+                ConfigImage.write(modbusConfig, loadModels(modelsFolderPath), Paths.get(cl.getOptionValue("c")));
+                LOG.info("Modbus configuration compiled to '{}'", cl.getOptionValue("c"));
+                return;
             }
 
-            ModbusConfig modbusConfig = gson.fromJson(reader, ModbusConfig.class);
-            ModbusMaster master = createAndStartModbus(modbusConfig);
+            Map<String, ModbusChannel> channels = createAndStartChannels(modbusConfig);
 
             createAndStartClient(endpoint, localAddress, localPort, cl.hasOption("b"), serverURI, pskIdentity, pskKey,
                     clientPrivateKey, clientPublicKey, serverPublicKey, clientCertificate, serverCertificate, latitude,
-                    longitude, scaleFactor, modelsFolderPath, modbusConfig, master);
-                    
+                    longitude, scaleFactor, modelsFolderPath, modbusConfig, channels,
+                    cl.hasOption("w") ? modbusConfigFilename : null);
         } catch (Exception e) {
             System.err.println("Unable to create and start client ...");
             e.printStackTrace();
@@ -372,18 +394,33 @@ public class LeshanModbusClient {
             String serverURI, byte[] pskIdentity, byte[] pskKey, PrivateKey clientPrivateKey, PublicKey clientPublicKey,
             PublicKey serverPublicKey, X509Certificate clientCertificate, X509Certificate serverCertificate,
             Float latitude, Float longitude, float scaleFactor, String modelsFolderPath, ModbusConfig modbusConfig,
-            ModbusMaster master) throws CertificateEncodingException {
+            Map<String, ModbusChannel> channels) throws CertificateEncodingException {
+        createAndStartClient(endpoint, localAddress, localPort, needBootstrap, serverURI, pskIdentity, pskKey,
+                clientPrivateKey, clientPublicKey, serverPublicKey, clientCertificate, serverCertificate, latitude,
+                longitude, scaleFactor, modelsFolderPath, modbusConfig, channels, null);
+    }
 
-        // Initialize model
-        List<ObjectModel> models = ObjectLoader.loadDefault();
-        if (modelsFolderPath != null) {
-            models.addAll(ObjectLoader.loadObjectsFromDir(new File(modelsFolderPath)));
+    /**
+     * @param watchedConfig the modbus configuration file which changes are applied while running, null for none
+     */
+    public static void createAndStartClient(String endpoint, String localAddress, int localPort, boolean needBootstrap,
+            String serverURI, byte[] pskIdentity, byte[] pskKey, PrivateKey clientPrivateKey, PublicKey clientPublicKey,
+            PublicKey serverPublicKey, X509Certificate clientCertificate, X509Certificate serverCertificate,
+            Float latitude, Float longitude, float scaleFactor, String modelsFolderPath, ModbusConfig modbusConfig,
+            Map<String, ModbusChannel> channels, String watchedConfig) throws CertificateEncodingException {
+
+        // Initialize model, a compiled configuration only decoding the models of the objects it exposes
+        List<ObjectModel> models;
+        if (modbusConfig.image != null) {
+            List<Integer> objectIds = new ArrayList<>(Arrays.asList(SECURITY, SERVER));
+            modbusConfig.objects.keySet().forEach(key -> objectIds.add(Integer.parseInt(key)));
+            models = modbusConfig.image.models(objectIds);
         } else {
-            models.addAll(ObjectLoader.loadDdfResources("/models/", modelPaths));
+            models = loadModels(modelsFolderPath);
         }
 
         // Initialize object list
-        ObjectsInitializer initializer = new ObjectsInitializer(new LwM2mModel(models));
+        ObjectsInitializer initializer = new ModbusObjectsInitializer(new LwM2mModel(models));
         if (needBootstrap) {
             if (pskIdentity != null) {
                 initializer.setInstancesForObject(SECURITY, pskBootstrap(serverURI, pskIdentity, pskKey));
@@ -423,6 +460,17 @@ public class LeshanModbusClient {
         supportedObjectIds.add(SECURITY);
         supportedObjectIds.add(SERVER);
 
+        List<ModbusSensor> sensors = new ArrayList<>();
+
+        // polls resources with a 'pollMillis' cadence and samples observed ones in the background
+        final ModbusPoller poller = new ModbusPoller(modbusConfig.maxReadGap, modbusConfig.sampleMillis);
+
+        // last known values, reloaded from the previous run if snapshotted
+        final ValueStore store = ValueStore.of(modbusConfig.valueStore);
+        if (store != null) {
+            store.start();
+        }
+
         // try to setup modbus sensors from loaded config
         modbusConfig.objects.forEach((key, objects) -> {
             int objectId = Integer.parseInt(key);
@@ -430,7 +478,8 @@ public class LeshanModbusClient {
             ModbusSensor[] modbusInstances = new ModbusSensor[objects.size()];
 
             for (int i = 0; i < objects.size(); i++) {
-                modbusInstances[i] = new ModbusSensor(modbusConfig.slave, master, objects.get(i));
+                modbusInstances[i] = new ModbusSensor(i, objects.get(i), channels, poller, store);
+                sensors.add(modbusInstances[i]);
             }
 
             initializer.setInstancesForObject(objectId, modbusInstances);
@@ -440,6 +489,21 @@ public class LeshanModbusClient {
 
         List<LwM2mObjectEnabler> enablers = initializer.create(Utils.toIntArray(supportedObjectIds));
 
+        // on-disk history of the polled values, recorded by the poller
+        final SampleBuffer history = modbusConfig.history != null ?
+                new SampleBuffer(modbusConfig.history.file, modbusConfig.history.samplesPerResource) :
+                null;
+        if (history != null) {
+            try {
+                history.open(sensors);
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to open history file '" + modbusConfig.history.file + "'", e);
+            }
+            poller.setHistory(history);
+        }
+
+        poller.start(sensors);
+
         // Create CoAP Config
         NetworkConfig coapConfig;
         File configFile = new File(NetworkConfig.DEFAULT_FILE_NAME);
@@ -458,6 +522,9 @@ public class LeshanModbusClient {
         builder.setCoapConfig(coapConfig);
         final LeshanClient client = builder.build();
 
+        // sample observed resources only while they are observed
+        ObservationTracker.install(client, enablers);
+
         // Display client public key to easily add it in demo servers.
         if (clientPublicKey != null) {
             PublicKey rawPublicKey = clientPublicKey;
@@ -493,24 +560,159 @@ public class LeshanModbusClient {
                     Hex.encodeHexString(clientPrivateKey.getEncoded()));
         }
 
+        // publish the metrics of the bridge
+        List<MetricsExporter> exporters = new ArrayList<>();
+        if (modbusConfig.metrics != null) {
+            if (modbusConfig.metrics.prometheusPort > 0) {
+                exporters.add(new PrometheusExporter(Metrics.REGISTRY, modbusConfig.metrics.prometheusHost,
+                        modbusConfig.metrics.prometheusPort));
+            }
+            if (modbusConfig.metrics.jmx) {
+                exporters.add(new JmxExporter(Metrics.REGISTRY));
+            }
+        }
+        for (MetricsExporter exporter : exporters) {
+            try {
+                exporter.start();
+            } catch (Exception e) {
+                throw new IllegalStateException("unable to start the metrics exporter", e);
+            }
+        }
+
+        if ("virtual".equals(modbusConfig.requestThreads)) {
+            RequestThreads.install(client.getCoapServer());
+        }
+
         // Start the client
         client.start();
 
+        // upload the history once the client endpoints are started
+        HistoryUploader uploader = null;
+        if (history != null) {
+            String uploadUri = modbusConfig.history.uploadUri;
+            if (uploadUri == null && !needBootstrap) {
+                uploadUri = serverURI + "/dp";
+            }
+
+            if (uploadUri != null) {
+                uploader = new HistoryUploader(history, client, URI.create(uploadUri), modbusConfig.history.batchSize,
+                        modbusConfig.history.uploadMillis);
+                uploader.start();
+            } else {
+                LOG.warn("no 'uploadUri' for the history while bootstrapping, samples are only buffered");
+            }
+        }
+        final HistoryUploader historyUploader = uploader;
+
+        // apply the changes of the configuration file from now on
+        ConfigReloader reloader = null;
+        if (watchedConfig != null) {
+            reloader = new ConfigReloader(Paths.get(watchedConfig), modbusConfig, client, channels, poller, store);
+            try {
+                reloader.start();
+            } catch (IOException e) {
+                throw new IllegalStateException("unable to watch '" + watchedConfig + "'", e);
+            }
+        }
+        final ConfigReloader configReloader = reloader;
+
         // De-register on shutdown and stop client.
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
+                if (configReloader != null) {
+                    configReloader.stop();
+                }
+                if (historyUploader != null) {
+                    historyUploader.stop();
+                }
+                exporters.forEach(MetricsExporter::stop);
+                poller.stop();
+                if (history != null) {
+                    history.close();
+                }
+                channels.values().forEach(ModbusChannel::stop);
+                if (store != null) {
+                    store.stop();
+                }
                 client.destroy(true); // send de-registration request before destroy
             }
         });
     }
 
-    private static ModbusMaster createAndStartModbus(ModbusConfig config) throws Exception {
-        ModbusMaster master;
+    static List<ObjectModel> loadModels(String modelsFolderPath) {
+        List<ObjectModel> models = ObjectLoader.loadDefault();
+        if (modelsFolderPath != null) {
+            models.addAll(ObjectLoader.loadObjectsFromDir(new File(modelsFolderPath)));
+        } else {
+            models.addAll(ObjectLoader.loadDdfResources("/models/", modelPaths));
+        }
+
+        return models;
+    }
+
+    /**
+     * Reads a json or a compiled (see {@link ConfigImage}) modbus configuration.
+     */
+    static ModbusConfig readModbusConfig(Path file) throws IOException {
+        if (ConfigImage.isImage(file)) {
+            return ConfigImage.open(file).config();
+        }
+
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            return readModbusConfig(reader);
+        }
+    }
+
+    static ModbusConfig readModbusConfig(Reader reader) {
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(ModbusConfig.Instance.class, new ModbusConfig.InstanceDeserializer())
+                .create();
+
+        return gson.fromJson(reader, ModbusConfig.class);
+    }
+
+    static Map<String, ModbusChannel> createAndStartChannels(ModbusConfig config) throws Exception {
+        Map<String, ModbusChannel> channels = new LinkedHashMap<>();
 
         // enable debug mode
         Modbus.setLogLevel(Modbus.LogLevel.LEVEL_DEBUG);
 
+        for (Map.Entry<String, ModbusConfig.Connection> entry : config.allConnections().entrySet()) {
+            channels.put(entry.getKey(), createAndStartChannel(entry.getKey(), entry.getValue()));
+        }
+
+        if (channels.isEmpty()) {
+            throw new IllegalStateException("no 'connection' information found in modbus configuration file!");
+        }
+
+        return channels;
+    }
+
+    static ModbusChannel createAndStartChannel(String name, ModbusConfig.Connection connection) throws Exception {
+        LOG.info("Creating Modbus connection '{}'", name);
+        ModbusChannel channel = createModbusChannel(name, connection);
+        channel.combineWrites(connection.writeWindowMillis);
+        channel.supervise(connection.failureThreshold, connection.reconnectMillis, connection.maxReconnectMillis,
+                connection.serveStale);
+        channel.isolate(connection.maxSlaveRequests, connection.maxWaitMillis > 0 ?
+                connection.maxWaitMillis :
+                connection.queueTimeout + connection.responseTimeout);
+
+        // try to connect, reconnecting in the background if the device is not reachable yet
+        channel.start();
+
+        if (connection.broker != null) {
+            channel.share(new ModbusBroker(channel, connection.broker));
+        }
+
+        return channel;
+    }
+
+    private static ModbusChannel createModbusChannel(String name, ModbusConfig.Connection config) throws Exception {
+        ModbusMaster master;
+        BusTime busTime;
+
         switch (config.connection) {
         case TCP: {
             TcpParameters tp = new TcpParameters();
@@ -519,17 +721,37 @@ public class LeshanModbusClient {
             String host = InetAddress.getByName(config.tcpSettings.node).getHostAddress();
             int port = config.tcpSettings.port;
             boolean keepAlive = config.tcpSettings.keepalive;
+            int maxInFlight = config.tcpSettings.maxInFlight;
+
+            if (maxInFlight > 1) {
+                LOG.info(
+                        "Starting pipelined Modbus TCP with settings: [host:'{}', port:{}, keepalive:{}, maxInFlight:{}]",
+                        host, port, keepAlive, maxInFlight);
+
+                return new PipelinedTcpChannel(name, config.slave, new InetSocketAddress(host, port), keepAlive,
+                        maxInFlight, config.responseTimeout, config.queueCapacity, config.queueTimeout);
+            }
 
             tp.setHost(InetAddress.getByName(host));
             tp.setPort(port);
             tp.setKeepAlive(keepAlive);
 
             master = ModbusMasterFactory.createModbusMasterTCP(tp);
+            busTime = BusTime.tcp(1);
             LOG.info("Starting ModbusConfig Master TCP with settings: [host:'{}', port:{}, keepalive:{}]", host, port,
                     keepAlive);
 
             break;
         }
+        case RTU_OVER_TCP: {
+            String host = InetAddress.getByName(config.tcpSettings.node).getHostAddress();
+            int port = config.tcpSettings.port;
+            LOG.info("Starting Modbus RTU over TCP with settings: [host:'{}', port:{}, keepalive:{}]", host, port,
+                    config.tcpSettings.keepalive);
+
+            return RtuChannel.tcp(name, config.slave, new InetSocketAddress(host, port), config.tcpSettings.keepalive,
+                    config.responseTimeout, config.queueCapacity, config.queueTimeout);
+        }
         case RTU: {
             SerialParameters sp = new SerialParameters();
 
@@ -540,6 +762,15 @@ public class LeshanModbusClient {
             int stop_bits = config.serialSettings.stopBits;
             SerialPort.Parity parity = SerialPort.Parity.getParity(config.serialSettings.parity);
 
+            if (config.serialSettings.preciseTiming) {
+                LOG.info(
+                        "Starting Modbus RTU with precise timing: [deviceName:'{}', baudRate:{}, dataBits:{}, stopBits:{}, parity:{}]",
+                        device_name, baud_rate, data_bits, stop_bits, parity);
+
+                return RtuChannel.serial(name, config.slave, config.serialSettings, config.responseTimeout,
+                        config.queueCapacity, config.queueTimeout);
+            }
+
             sp.setDevice(device_name);
             sp.setBaudRate(baud_rate);
             sp.setDataBits(data_bits);
@@ -547,6 +778,7 @@ public class LeshanModbusClient {
             sp.setParity(parity);
 
             master = ModbusMasterFactory.createModbusMasterRTU(sp);
+            busTime = BusTime.rtu(config.serialSettings.baudRate, data_bits, stop_bits, config.serialSettings.parity);
             LOG.info(
                     "Starting ModbusMaster RTU with settings: [deviceName:'{}', baudRate:{}, dataBits:{}, stopBits:{}, parity:{}]",
                     device_name, baud_rate, data_bits, stop_bits, parity);
@@ -565,6 +797,7 @@ public class LeshanModbusClient {
             sp.setParity(parity);
 
             master = ModbusMasterFactory.createModbusMasterASCII(sp);
+            busTime = BusTime.ascii(config.asciiSettings.baudRate, config.asciiSettings.parity);
             LOG.info("Starting ModbusMaster ASCII with settings: [deviceName:'{}', baudRate:{}, parity:{}]",
                     device_name, baud_rate, parity);
 
@@ -574,11 +807,8 @@ public class LeshanModbusClient {
             throw new IllegalStateException("no 'connection' information found in modbus configuration file!");
         }
 
-        master.setResponseTimeout(1000);
-
-        // try to connect
-        master.connect();
+        master.setResponseTimeout(config.responseTimeout);
 
-        return master;
+        return new MasterChannel(name, config.slave, master, busTime, config.queueCapacity, config.queueTimeout);
     }
 }
\ No newline at end of file
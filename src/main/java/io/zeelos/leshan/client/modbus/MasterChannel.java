@@ -0,0 +1,214 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import com.intelligt.modbus.jlibmodbus.master.ModbusMaster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A {@link ModbusChannel} driving a jlibmodbus {@link ModbusMaster}.
+ * <p>
+ * The dispatcher thread of the channel is the only owner of the master: requests are queued by priority and put on the
+ * wire one at a time, so frames from concurrent callers never interleave and a slow line never blocks requests
+ * targeting another connection. It is also the one reconnecting the master while the connection is down.
+ */
+class MasterChannel extends ModbusChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(MasterChannel.class);
+
+    private final ModbusMaster master;
+    private final RequestQueue<Request<?>> queue;
+    private final Thread dispatcher;
+
+    private volatile boolean running;
+
+    MasterChannel(String name, int slave, ModbusMaster master, BusTime busTime, int queueCapacity,
+            long queueTimeout) {
+        super(name, slave, busTime);
+        this.master = master;
+        this.queue = new RequestQueue<>(queueCapacity, queueTimeout);
+        this.dispatcher = new Thread(this::dispatch, "modbus-" + name);
+        this.dispatcher.setDaemon(true);
+    }
+
+    @Override
+    void start() {
+        try {
+            master.connect();
+        } catch (Exception e) {
+            // the dispatcher keeps trying
+            down(e);
+        }
+
+        running = true;
+        dispatcher.start();
+    }
+
+    @Override
+    void stop() {
+        super.stop();
+        running = false;
+        dispatcher.interrupt();
+        queue.drain(new ModbusIOException("connection '" + getName() + "' is closed"));
+
+        try {
+            master.disconnect();
+        } catch (Exception e) {
+            log.warn("unable to disconnect '{}'", getName(), e);
+        }
+    }
+
+    @Override
+    RequestQueue<?> getQueue() {
+        return queue;
+    }
+
+    @Override
+    CompletableFuture<Object> read(ModbusTable table, int slave, int startAddress, int quantity, Priority priority) {
+        return submit(slave, priority, BusTime.READ_REQUEST, BusTime.readResponse(table, quantity), master -> {
+            switch (table) {
+                case HOLDING_REGISTER:
+                    return master.readHoldingRegisters(slave, startAddress, quantity);
+                case INPUT_REGISTER:
+                    return master.readInputRegisters(slave, startAddress, quantity);
+                case COIL:
+                    return master.readCoils(slave, startAddress, quantity);
+                default:
+                    return master.readDiscreteInputs(slave, startAddress, quantity);
+            }
+        });
+    }
+
+    @Override
+    CompletableFuture<Void> writeRegister(int slave, int address, int value) {
+        return submit(slave, Priority.WRITE, BusTime.WRITE_SINGLE, BusTime.WRITE_RESPONSE, master -> {
+            master.writeSingleRegister(slave, address, value);
+            return null;
+        });
+    }
+
+    @Override
+    CompletableFuture<Void> writeRegisters(int slave, int startAddress, int[] values) {
+        return submit(slave, Priority.WRITE, BusTime.writeRegistersRequest(values.length), BusTime.WRITE_RESPONSE,
+                master -> {
+                    master.writeMultipleRegisters(slave, startAddress, values);
+                    return null;
+                });
+    }
+
+    @Override
+    CompletableFuture<Void> writeCoil(int slave, int address, boolean value) {
+        return submit(slave, Priority.WRITE, BusTime.WRITE_SINGLE, BusTime.WRITE_RESPONSE, master -> {
+            master.writeSingleCoil(slave, address, value);
+            return null;
+        });
+    }
+
+    @Override
+    CompletableFuture<Void> writeCoils(int slave, int startAddress, boolean[] values) {
+        return submit(slave, Priority.WRITE, BusTime.writeCoilsRequest(values.length), BusTime.WRITE_RESPONSE,
+                master -> {
+                    master.writeMultipleCoils(slave, startAddress, values);
+                    return null;
+                });
+    }
+
+    private <T> CompletableFuture<T> submit(int slave, Priority priority, int requestPdu, int responsePdu,
+            Operation<T> operation) {
+        Request<T> request = new Request<>(priority, getBusTime().model(requestPdu, responsePdu), operation);
+
+        if (!admit(slave, priority, request.future)) {
+            return request.future;
+        }
+        if (!running) {
+            request.future.completeExceptionally(new ModbusIOException("connection '" + getName() + "' is closed"));
+        } else if (!isAvailable()) {
+            request.future.completeExceptionally(unavailable());
+        } else {
+            queue.offer(request);
+            if (!running) {
+                // closed in the meantime, after the queue was drained
+                queue.drain(new ModbusIOException("connection '" + getName() + "' is closed"));
+            }
+        }
+
+        return request.future;
+    }
+
+    private void dispatch() {
+        while (running) {
+            try {
+                if (!isAvailable()) {
+                    reconnect();
+                    continue;
+                }
+
+                Request<?> request = queue.take();
+
+                long start = System.nanoTime();
+                Throwable failure = request.run(master);
+                getBusTime().record(System.nanoTime() - start, request.modelNanos);
+
+                if (onCompletion(failure)) {
+                    queue.drain(unavailable());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void reconnect() throws InterruptedException {
+        queue.drain(unavailable());
+
+        for (int attempt = 0; running; attempt++) {
+            Thread.sleep(reconnectDelay(attempt));
+
+            try {
+                master.disconnect();
+            } catch (Exception e) {
+                log.debug("unable to disconnect '{}'", getName(), e);
+            }
+
+            try {
+                master.connect();
+                reconnected();
+                return;
+            } catch (Exception e) {
+                log.debug("unable to reconnect '{}'", getName(), e);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation<T> {
+        T run(ModbusMaster master) throws Exception;
+    }
+
+    private static class Request<T> extends RequestQueue.Entry<T> {
+        private final long modelNanos;
+        private final Operation<T> operation;
+
+        Request(Priority priority, long modelNanos, Operation<T> operation) {
+            super(priority);
+            this.modelNanos = modelNanos;
+            this.operation = operation;
+        }
+
+        /**
+         * @return the failure of the request, null if it succeeded
+         */
+        Throwable run(ModbusMaster master) {
+            try {
+                future.complete(operation.run(master));
+                return null;
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+                return t;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.zeelos.leshan.client.modbus;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.Function;
+
+/**
+ * Counters, gauges and latency histograms of the bridge, read by the {@link MetricsExporter exporters}.
+ * <p>
+ * A series is created on first use and identified by its name and labels, given as name/value pairs. Hot paths keep
+ * the series they update rather than looking them up for every event.
+ */
+final class Metrics {
+
+    static final Metrics REGISTRY = new Metrics();
+
+    // upper bounds (s) of the buckets of the latency histograms
+    private static final double[] LATENCY_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+            2.5, 5, 10 };
+
+    // sorted by name, for a stable output
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    Counter counter(String name, String help, String... labels) {
+        return family(name, help, "counter").series(labels, k -> new Counter());
+    }
+
+    Histogram histogram(String name, String help, String... labels) {
+        return family(name, help, "histogram").series(labels, k -> new Histogram(LATENCY_BUCKETS));
+    }
+
+    /**
+     * Registers a gauge, replacing the previous one with the same name and labels.
+     *
+     * @return the gauge, to {@link #remove} it when what it measures goes away
+     */
+    Gauge gauge(String name, String help, DoubleSupplier value, String... labels) {
+        Gauge gauge = new Gauge(value);
+        family(name, help, "gauge").series.put(Family.labels(labels), gauge);
+
+        return gauge;
+    }
+
+    /**
+     * Unregisters a gauge, unless another one has replaced it since.
+     */
+    void remove(String name, Gauge gauge, String... labels) {
+        Family family = families.get(name);
+        if (family != null) {
+            family.series.remove(Family.labels(labels), gauge);
+        }
+    }
+
+    /**
+     * Visits every family, then each of its samples.
+     */
+    void collect(Visitor visitor) {
+        for (Family family : families.values()) {
+            visitor.family(family.name, family.type, family.help);
+            family.series.forEach((labels, series) -> series.collect(family.name, labels, visitor));
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, k -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+
+        return family;
+    }
+
+    interface Visitor {
+        void family(String name, String type, String help);
+
+        /**
+         * @param labels the labels in the Prometheus text format, without braces, empty if none
+         */
+        void sample(String name, String labels, double value);
+    }
+
+    private interface Series {
+        void collect(String name, String labels, Visitor visitor);
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final String type;
+        final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        @SuppressWarnings("unchecked")
+        <S extends Series> S series(String[] labels, Function<String, S> factory) {
+            return (S) series.computeIfAbsent(labels(labels), factory);
+        }
+
+        static String labels(String[] labels) {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i + 1 < labels.length; i += 2) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+            }
+
+            return builder.toString();
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    static class Counter implements Series {
+        private final LongAdder count = new LongAdder();
+
+        void increment() {
+            count.increment();
+        }
+
+        long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void collect(String name, String labels, Visitor visitor) {
+            visitor.sample(name, labels, count.sum());
+        }
+    }
+
+    static class Histogram implements Series {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observeNanos(long nanos) {
+            observe(nanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        void observe(double seconds) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (seconds <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        @Override
+        public void collect(String name, String labels, Visitor visitor) {
+            String separator = labels.isEmpty() ? "" : ",";
+
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                visitor.sample(name + "_bucket", labels + separator + "le=\"" + bounds[i] + "\"", cumulative);
+            }
+
+            // read once, the buckets may have moved on in the meantime
+            long total = Math.max(cumulative, count.sum());
+            visitor.sample(name + "_bucket", labels + separator + "le=\"+Inf\"", total);
+            visitor.sample(name + "_sum", labels, sum.sum());
+            visitor.sample(name + "_count", labels, total);
+        }
+    }
+
+    static class Gauge implements Series {
+        private final DoubleSupplier value;
+
+        Gauge(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void collect(String name, String labels, Visitor visitor) {
+            visitor.sample(name, labels, value.getAsDouble());
+        }
+    }
+}
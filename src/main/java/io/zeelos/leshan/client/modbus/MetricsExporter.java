@@ -0,0 +1,11 @@
+package io.zeelos.leshan.client.modbus;
+
+/**
+ * Publishes the {@link Metrics} of the bridge to a monitoring system.
+ */
+interface MetricsExporter {
+
+    void start() throws Exception;
+
+    void stop();
+}
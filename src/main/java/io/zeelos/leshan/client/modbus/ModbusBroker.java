@@ -0,0 +1,464 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.exception.ModbusNumberException;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Shares a connection with other processes: the process owning the line serves it as a Modbus/TCP server on a local
+ * socket, other bridges reaching its devices with a {@code tcp} connection to that socket ({@code maxInFlight} above 1
+ * pipelining their requests).
+ * <p>
+ * Requests are queued per client and scheduled round robin, only {@code maxInFlight} of them being queued on the
+ * connection at once: a busy client delays the others by at most one request each, and the polls of the owning
+ * process keep their share of the line, broker reads being queued as polls. Failures are answered with the gateway
+ * exception codes: path unavailable (0x0A) when the connection is down, target failed to respond (0x0B) on timeouts.
+ * <p>
+ * All socket I/O happens on a single selector thread. The socket is bound in the background, so that a reloaded
+ * connection takes it over once the previous one released it.
+ */
+class ModbusBroker {
+
+    private static final Logger log = LoggerFactory.getLogger(ModbusBroker.class);
+
+    // MBAP header: transaction id, protocol id, length, unit id
+    private static final int MBAP_LENGTH = 7;
+    private static final int MAX_ADU_LENGTH = 260;
+
+    private static final int ILLEGAL_FUNCTION = 0x01;
+    private static final int ILLEGAL_DATA_ADDRESS = 0x02;
+    private static final int ILLEGAL_DATA_VALUE = 0x03;
+    private static final int SLAVE_DEVICE_BUSY = 0x06;
+    private static final int GATEWAY_PATH_UNAVAILABLE = 0x0A;
+    private static final int GATEWAY_TARGET_FAILED = 0x0B;
+
+    // delay (ms) before trying again to bind the socket
+    private static final long BIND_RETRY_MILLIS = 1000;
+
+    private final ModbusChannel channel;
+    private final InetSocketAddress address;
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final Metrics.Gauge clientsGauge;
+
+    // outcomes of the forwarded requests, handed over to the selector thread
+    private final Queue<Runnable> completions = new ConcurrentLinkedQueue<>();
+
+    // only accessed from the selector thread
+    private final List<Session> sessions = new ArrayList<>();
+    private int next;
+    private int inFlight;
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile int clients;
+
+    ModbusBroker(ModbusChannel channel, ModbusConfig.BrokerSettings settings) {
+        this.channel = channel;
+        this.address = new InetSocketAddress(settings.host, settings.port);
+        this.maxInFlight = Math.max(1, settings.maxInFlight);
+        this.maxQueued = Math.max(1, settings.maxQueued);
+
+        clientsGauge = Metrics.REGISTRY.gauge("modbus_broker_clients",
+                "Processes sharing the connection through its broker",
+                () -> clients, "connection", channel.getName());
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+
+        running = true;
+        thread = new Thread(this::loop, "modbus-broker-" + channel.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        Metrics.REGISTRY.remove("modbus_broker_clients", clientsGauge, "connection", channel.getName());
+    }
+
+    //-------Selector thread-------
+    private void loop() {
+        boolean warned = false;
+
+        while (running) {
+            try {
+                if (server == null) {
+                    bind();
+                    log.info("Sharing connection '{}' on {}", channel.getName(), address);
+                    continue;
+                }
+
+                selector.select();
+                poll();
+            } catch (IOException e) {
+                if (server == null) {
+                    if (!warned) {
+                        log.warn("unable to share connection '{}' on {}, trying again", channel.getName(), address,
+                                e);
+                        warned = true;
+                    }
+                    sleep();
+                } else {
+                    log.warn("broker of '{}' failed", channel.getName(), e);
+                }
+            }
+        }
+
+        close();
+    }
+
+    private void bind() throws IOException {
+        ServerSocketChannel socket = ServerSocketChannel.open();
+        try {
+            socket.bind(address);
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        server = socket;
+    }
+
+    private void sleep() {
+        try {
+            Thread.sleep(BIND_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private void poll() throws IOException {
+        Runnable completion;
+        while ((completion = completions.poll()) != null) {
+            completion.run();
+        }
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (key.isValid() && key.isAcceptable()) {
+                accept();
+                continue;
+            }
+
+            Session session = (Session) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    session.receive();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.flush();
+                }
+            } catch (IOException e) {
+                log.debug("closing client {} of '{}'", session, channel.getName(), e);
+                session.close();
+            }
+        }
+
+        schedule();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel socket = server.accept();
+        if (socket == null) {
+            return;
+        }
+
+        socket.configureBlocking(false);
+        socket.socket().setTcpNoDelay(true);
+
+        Session session = new Session(socket);
+        socket.register(selector, SelectionKey.OP_READ, session);
+        sessions.add(session);
+        clients = sessions.size();
+
+        log.info("Client {} connected to the broker of '{}'", session, channel.getName());
+    }
+
+    /**
+     * Forwards the queued requests to the connection, one client after the other.
+     */
+    private void schedule() {
+        while (inFlight < maxInFlight) {
+            Session session = null;
+            for (int i = 0; i < sessions.size() && session == null; i++) {
+                Session candidate = sessions.get((next + i) % sessions.size());
+                if (!candidate.queued.isEmpty()) {
+                    session = candidate;
+                    next = (next + i + 1) % sessions.size();
+                }
+            }
+            if (session == null) {
+                return;
+            }
+
+            forward(session, session.queued.poll());
+        }
+    }
+
+    private void forward(Session session, Request request) {
+        CompletableFuture<byte[]> response;
+        try {
+            response = submit(request.unit, request.pdu);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            // truncated request
+            session.respond(request, ModbusPdu.exceptionResponse(request.pdu[0], ILLEGAL_DATA_VALUE));
+            return;
+        }
+
+        inFlight++;
+        response.whenComplete((pdu, failure) -> {
+            byte[] answer = failure == null ? pdu : ModbusPdu.exceptionResponse(request.pdu[0], code(failure));
+            completions.add(() -> {
+                inFlight--;
+                session.respond(request, answer);
+            });
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * Forwards a request PDU to the connection.
+     *
+     * @return the response PDU
+     */
+    private CompletableFuture<byte[]> submit(int unit, byte[] request) {
+        ByteBuffer pdu = ByteBuffer.wrap(request);
+        int function = pdu.get() & 0xFF;
+        int address = pdu.getShort() & 0xFFFF;
+
+        switch (function) {
+            case ModbusPdu.READ_COILS:
+            case ModbusPdu.READ_DISCRETE_INPUTS:
+            case ModbusPdu.READ_HOLDING_REGISTERS:
+            case ModbusPdu.READ_INPUT_REGISTERS: {
+                ModbusTable table = table(function);
+                int quantity = pdu.getShort() & 0xFFFF;
+
+                return channel.read(table, unit, address, quantity, ModbusChannel.Priority.POLL)
+                        .thenApply(values -> ModbusPdu.readResponse(function, values));
+            }
+            case ModbusPdu.WRITE_SINGLE_COIL:
+                return channel.writeCoil(unit, address, (pdu.getShort() & 0xFFFF) == 0xFF00)
+                        .thenApply(v -> request);
+            case ModbusPdu.WRITE_SINGLE_REGISTER:
+                return channel.writeRegister(unit, address, pdu.getShort() & 0xFFFF).thenApply(v -> request);
+            case ModbusPdu.WRITE_MULTIPLE_COILS: {
+                boolean[] values = new boolean[pdu.getShort() & 0xFFFF];
+                int offset = pdu.position() + 1;
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (pdu.get(offset + i / 8) & (1 << (i % 8))) != 0;
+                }
+
+                return channel.writeCoils(unit, address, values).thenApply(v -> echo(request));
+            }
+            case ModbusPdu.WRITE_MULTIPLE_REGISTERS: {
+                int[] values = new int[pdu.getShort() & 0xFFFF];
+                pdu.get();
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = pdu.getShort() & 0xFFFF;
+                }
+
+                return channel.writeRegisters(unit, address, values).thenApply(v -> echo(request));
+            }
+            default: {
+                CompletableFuture<byte[]> unsupported = new CompletableFuture<>();
+                unsupported.complete(ModbusPdu.exceptionResponse(function, ILLEGAL_FUNCTION));
+                return unsupported;
+            }
+        }
+    }
+
+    private static ModbusTable table(int function) {
+        for (ModbusTable table : ModbusTable.values()) {
+            if (table.readFunction == function) {
+                return table;
+            }
+        }
+
+        throw new IllegalArgumentException("not a read function: " + function);
+    }
+
+    // the response to a multiple write: function, start address and quantity
+    private static byte[] echo(byte[] request) {
+        byte[] response = new byte[5];
+        System.arraycopy(request, 0, response, 0, response.length);
+        return response;
+    }
+
+    private static int code(Throwable failure) {
+        Throwable cause = failure instanceof CompletionException && failure.getCause() != null ?
+                failure.getCause() :
+                failure;
+
+        if (cause instanceof ModbusProtocolException) {
+            return ((ModbusProtocolException) cause).getException().getValue();
+        }
+        if (cause instanceof ModbusNumberException) {
+            // refused before reaching the line, e.g. a range past the last address
+            return ILLEGAL_DATA_ADDRESS;
+        }
+        if (cause instanceof RejectedExecutionException) {
+            return SLAVE_DEVICE_BUSY;
+        }
+
+        return ModbusChannel.isTimeout(cause) ? GATEWAY_TARGET_FAILED : GATEWAY_PATH_UNAVAILABLE;
+    }
+
+    private void close() {
+        for (Session session : new ArrayList<>(sessions)) {
+            session.close();
+        }
+
+        try {
+            if (server != null) {
+                server.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            log.warn("unable to close the broker of '{}'", channel.getName(), e);
+        }
+    }
+
+    // a connected process
+    private class Session {
+        final SocketChannel socket;
+        final ByteBuffer inbound = ByteBuffer.allocate(MAX_ADU_LENGTH * 4);
+        final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        final Queue<Request> queued = new ArrayDeque<>();
+        final String remote;
+
+        Session(SocketChannel socket) throws IOException {
+            this.socket = socket;
+            this.remote = String.valueOf(socket.getRemoteAddress());
+        }
+
+        void receive() throws IOException {
+            if (socket.read(inbound) < 0) {
+                close();
+                return;
+            }
+
+            inbound.flip();
+            while (inbound.remaining() >= MBAP_LENGTH) {
+                int start = inbound.position();
+                int length = inbound.getShort(start + 4) & 0xFFFF;
+
+                if (length < 2 || length > MAX_ADU_LENGTH) {
+                    throw new IOException("invalid MBAP length " + length);
+                }
+                if (inbound.remaining() < 6 + length) {
+                    break;
+                }
+
+                Request request = new Request(inbound.getShort(start) & 0xFFFF, inbound.get(start + 6) & 0xFF,
+                        new byte[length - 1]);
+                inbound.position(start + MBAP_LENGTH);
+                inbound.get(request.pdu);
+
+                if (queued.size() >= maxQueued) {
+                    respond(request, ModbusPdu.exceptionResponse(request.pdu[0], SLAVE_DEVICE_BUSY));
+                } else {
+                    queued.add(request);
+                }
+            }
+            inbound.compact();
+        }
+
+        void respond(Request request, byte[] pdu) {
+            if (!socket.isOpen()) {
+                return;
+            }
+
+            ByteBuffer adu = ByteBuffer.allocate(MBAP_LENGTH + pdu.length);
+            adu.putShort((short) request.transactionId).putShort((short) 0).putShort((short) (pdu.length + 1))
+                    .put((byte) request.unit).put(pdu).flip();
+            outbound.add(adu);
+
+            try {
+                flush();
+            } catch (IOException e) {
+                log.debug("closing client {} of '{}'", this, channel.getName(), e);
+                close();
+            }
+        }
+
+        void flush() throws IOException {
+            ByteBuffer buffer;
+            while ((buffer = outbound.peek()) != null) {
+                socket.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
+                }
+                outbound.poll();
+            }
+
+            socket.keyFor(selector).interestOps(outbound.isEmpty() ?
+                    SelectionKey.OP_READ :
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            if (sessions.remove(this)) {
+                clients = sessions.size();
+                log.info("Client {} disconnected from the broker of '{}'", this, channel.getName());
+            }
+            queued.clear();
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("unable to close client {} of '{}'", this, channel.getName(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return remote;
+        }
+    }
+
+    private static class Request {
+        final int transactionId;
+        final int unit;
+        final byte[] pdu;
+
+        Request(int transactionId, int unit, byte[] pdu) {
+            this.transactionId = transactionId;
+            this.unit = unit;
+            this.pdu = pdu;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusProtocolException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A Modbus connection (TCP endpoint or serial line) used by the sensors and the poller.
+ * <p>
+ * All requests are asynchronous, each implementation being in charge of how they are put on the wire.
+ * <p>
+ * Each connection is supervised: after {@code failureThreshold} consecutive I/O failures or timeouts it is considered
+ * down, requests then failing immediately while the implementation reconnects with an exponential backoff.
+ * <p>
+ * Each slave is isolated from the others sharing the connection: only {@code maxSlaveRequests} reads and writes of the
+ * servers may be pending per slave, and callers wait at most {@code maxWaitMillis} for them, so that a slow device
+ * cannot hold every LWM2M request thread.
+ */
+abstract class ModbusChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(ModbusChannel.class);
+
+    private final String name;
+    private final int slave;
+    private final BusTime busTime;
+
+    // set when writes are combined, see ModbusConfig.Connection#writeWindowMillis
+    private WriteCombiner combiner;
+
+    // circuit breaker, see ModbusConfig.Connection
+    private int failureThreshold = 3;
+    private long reconnectMillis = 500;
+    private long maxReconnectMillis = 30000;
+    private boolean serveStale;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile boolean available = true;
+
+    // bulkhead, see ModbusConfig.Connection
+    private int maxSlaveRequests;
+    private long maxWaitMillis = 11000;
+
+    // serves the connection to other processes, null if not shared
+    private ModbusBroker broker;
+
+    // pending requests and metrics by slave, see #admit
+    private final Map<Integer, Slave> slaves = new ConcurrentHashMap<>();
+
+    final Metrics.Counter cacheHits;
+    final Metrics.Counter cacheMisses;
+    final Metrics.Histogram pollLag;
+    final Metrics.Counter pollsSkipped;
+    private final Metrics.Gauge queueDepth;
+    private final Metrics.Gauge connectionUp;
+
+    ModbusChannel(String name, int slave, BusTime busTime) {
+        this.name = name;
+        this.slave = slave;
+        this.busTime = busTime;
+
+        Metrics metrics = Metrics.REGISTRY;
+        cacheHits = metrics.counter("modbus_cache_lookups_total",
+                "Server reads answered from polled or last known values (hit) or from the device (miss)",
+                "connection", name, "result", "hit");
+        cacheMisses = metrics.counter("modbus_cache_lookups_total",
+                "Server reads answered from polled or last known values (hit) or from the device (miss)",
+                "connection", name, "result", "miss");
+        pollLag = metrics.histogram("modbus_poll_lag_seconds",
+                "Time between the scheduled time of a poll and its response", "connection", name);
+        pollsSkipped = metrics.counter("modbus_polls_skipped_total",
+                "Polls skipped because the connection was down or the previous poll still pending",
+                "connection", name);
+        queueDepth = metrics.gauge("modbus_queue_depth", "Requests waiting for the connection",
+                () -> getQueue() != null ? getQueue().getDepth() : 0, "connection", name);
+        connectionUp = metrics.gauge("modbus_connection_up", "Whether the connection is up", () -> available ? 1 : 0,
+                "connection", name);
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * @return the slave used by resources which do not define one
+     */
+    int getSlave() {
+        return slave;
+    }
+
+    /**
+     * @return how long requests keep this connection busy
+     */
+    BusTime getBusTime() {
+        return busTime;
+    }
+
+    /**
+     * @return the combiner of the holding register and coil writes of this connection, null if writes are sent
+     *         immediately
+     */
+    WriteCombiner getCombiner() {
+        return combiner;
+    }
+
+    void combineWrites(long windowMillis) {
+        combiner = windowMillis > 0 ? new WriteCombiner(this, windowMillis) : null;
+    }
+
+    void supervise(int failureThreshold, long reconnectMillis, long maxReconnectMillis, boolean serveStale) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.reconnectMillis = Math.max(1, reconnectMillis);
+        this.maxReconnectMillis = Math.max(this.reconnectMillis, maxReconnectMillis);
+        this.serveStale = serveStale;
+    }
+
+    void isolate(int maxSlaveRequests, long maxWaitMillis) {
+        this.maxSlaveRequests = Math.max(0, maxSlaveRequests);
+        this.maxWaitMillis = Math.max(1, maxWaitMillis);
+    }
+
+    /**
+     * @return how long (ms) a caller waits for a request of this connection
+     */
+    long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return false while the connection is down, requests then failing immediately
+     */
+    boolean isAvailable() {
+        return available;
+    }
+
+    /**
+     * @return whether cached values may be served while the connection is down
+     */
+    boolean isServingStale() {
+        return serveStale;
+    }
+
+    /**
+     * Accounts the outcome of a request: I/O failures and timeouts count towards the failure threshold, anything else
+     * (including exception responses of a device) proves the connection alive.
+     *
+     * @return true if this failure took the connection down
+     */
+    boolean onCompletion(Throwable failure) {
+        if (failure == null || !isConnectionFailure(failure)) {
+            failures.set(0);
+            return false;
+        }
+
+        if (failures.incrementAndGet() >= failureThreshold && available) {
+            available = false;
+            log.warn("connection '{}' is down after {} consecutive failures: {}", name, failures.get(),
+                    failure.toString());
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Takes the connection down, as when it could not be established at all.
+     */
+    void down(Throwable cause) {
+        if (available) {
+            available = false;
+            log.warn("connection '{}' is down: {}", name, cause.toString());
+        }
+    }
+
+    void reconnected() {
+        failures.set(0);
+        available = true;
+        log.info("connection '{}' is back up", name);
+    }
+
+    /**
+     * @return the delay (ms) before the given reconnection attempt, starting at 0
+     */
+    long reconnectDelay(int attempt) {
+        long delay = Math.min(maxReconnectMillis, reconnectMillis << Math.min(attempt, 20));
+
+        // spread the reconnections of connections which failed together
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    ModbusIOException unavailable() {
+        return new ModbusIOException("connection '" + name + "' is down");
+    }
+
+    private static boolean isConnectionFailure(Throwable failure) {
+        return failure instanceof ModbusIOException || failure instanceof IOException;
+    }
+
+    /**
+     * Admits a request to a slave, accounting its latency and outcome once it completes. Polls are always admitted,
+     * the poller keeping at most one pending per block.
+     *
+     * @return false if the slave already has {@code maxSlaveRequests} pending requests, the future being failed
+     */
+    boolean admit(int slave, Priority priority, CompletableFuture<?> future) {
+        Slave state = slaves.computeIfAbsent(slave, k -> new Slave(name, k));
+
+        boolean limited = priority != Priority.POLL && maxSlaveRequests > 0;
+        if (limited && state.pending.incrementAndGet() > maxSlaveRequests) {
+            state.pending.decrementAndGet();
+            state.rejected.increment();
+            future.completeExceptionally(new RejectedExecutionException(
+                    "slave " + slave + " of connection '" + name + "' has " + maxSlaveRequests + " pending requests"));
+            return false;
+        }
+
+        long start = System.nanoTime();
+        future.whenComplete((value, failure) -> {
+            if (limited) {
+                state.pending.decrementAndGet();
+            }
+            state.record(System.nanoTime() - start, failure);
+        });
+
+        return true;
+    }
+
+    abstract void start() throws Exception;
+
+    /**
+     * Closes the connection, failing the requests still queued.
+     */
+    void stop() {
+        if (broker != null) {
+            broker.stop();
+        }
+
+        // a connection dropped by a reload must neither be exported nor kept alive by its gauges
+        Metrics.REGISTRY.remove("modbus_queue_depth", queueDepth, "connection", name);
+        Metrics.REGISTRY.remove("modbus_connection_up", connectionUp, "connection", name);
+    }
+
+    /**
+     * Serves this connection to other processes through the given broker, until the connection is stopped.
+     */
+    void share(ModbusBroker broker) throws IOException {
+        this.broker = broker;
+        broker.start();
+    }
+
+    /**
+     * @return the queue of requests waiting for this connection
+     */
+    abstract RequestQueue<?> getQueue();
+
+    /**
+     * Reads a range of the given register table, as an {@code int[]} for registers or a {@code boolean[]} for bits.
+     */
+    abstract CompletableFuture<Object> read(ModbusTable table, int slave, int startAddress, int quantity,
+            Priority priority);
+
+    abstract CompletableFuture<Void> writeRegister(int slave, int address, int value);
+
+    abstract CompletableFuture<Void> writeRegisters(int slave, int startAddress, int[] values);
+
+    abstract CompletableFuture<Void> writeCoil(int slave, int address, boolean value);
+
+    abstract CompletableFuture<Void> writeCoils(int slave, int startAddress, boolean[] values);
+
+    /**
+     * The order in which queued requests are served.
+     */
+    enum Priority {
+        WRITE, READ, POLL
+    }
+
+    private static class Slave {
+        final String connection;
+        final String slave;
+
+        // server requests queued or on the wire
+        final AtomicInteger pending = new AtomicInteger();
+
+        final Metrics.Histogram latency;
+        final Metrics.Counter ok;
+        final Metrics.Counter exception;
+        final Metrics.Counter timeout;
+        final Metrics.Counter error;
+        final Metrics.Counter rejected;
+        final Map<Integer, Metrics.Counter> exceptionCodes = new ConcurrentHashMap<>();
+
+        Slave(String connection, int slave) {
+            this.connection = connection;
+            this.slave = String.valueOf(slave);
+
+            latency = Metrics.REGISTRY.histogram("modbus_request_duration_seconds",
+                    "Time from queuing a request to receiving its response", "connection", connection, "slave",
+                    this.slave);
+            ok = outcome("ok");
+            exception = outcome("exception");
+            timeout = outcome("timeout");
+            error = outcome("error");
+            rejected = outcome("rejected");
+        }
+
+        private Metrics.Counter outcome(String outcome) {
+            return Metrics.REGISTRY.counter("modbus_requests_total",
+                    "Completed requests, by outcome: ok, exception response, timeout, other error or rejected", "connection",
+                    connection, "slave", slave, "outcome", outcome);
+        }
+
+        void record(long nanos, Throwable failure) {
+            if (failure == null) {
+                ok.increment();
+                latency.observeNanos(nanos);
+            } else if (failure instanceof ModbusProtocolException) {
+                int code = ((ModbusProtocolException) failure).getException().getValue();
+
+                exception.increment();
+                latency.observeNanos(nanos);
+                exceptionCodes.computeIfAbsent(code, k -> Metrics.REGISTRY.counter("modbus_exceptions_total",
+                        "Exception responses, by exception code", "connection", connection, "slave", slave, "code",
+                        String.valueOf(k))).increment();
+            } else if (isTimeout(failure)) {
+                timeout.increment();
+            } else {
+                error.increment();
+            }
+        }
+    }
+
+    /**
+     * @return whether a request failed for lack of a response in time
+     */
+    static boolean isTimeout(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof InterruptedIOException || t instanceof TimeoutException) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * Waits at most the given time for a request, which keeps going on the connection if the wait times out.
+     */
+    static <T> T await(CompletableFuture<T> future, long timeoutMillis) throws Exception {
+        try {
+            return future.get(Math.max(0, timeoutMillis), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        } catch (TimeoutException e) {
+            throw new TimeoutException("no response within " + timeoutMillis + " ms");
+        }
+    }
+}
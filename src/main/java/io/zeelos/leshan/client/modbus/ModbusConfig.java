@@ -1,23 +1,168 @@
 package io.zeelos.leshan.client.modbus;
 
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 class ModbusConfig {
 
+    static final String DEFAULT_CONNECTION = "default";
+
+    // single connection settings, kept for configurations bridging only one device
     String connection;
     int slave;
 
     TcpSettings tcpSettings;
     SerialSettings serialSettings;
     AsciiSettings asciiSettings;
+    int responseTimeout = 1000;
+    long writeWindowMillis;
+
+    // named connections, each one driven by its own I/O worker
+    Map<String, Connection> connections;
+
+    // unused addresses tolerated between two polled ranges before they are split in separate requests
+    int maxReadGap;
+
+    // cadence (ms) at which observed resources without 'pollMillis' are sampled for changes
+    long sampleMillis = 1000;
+
+    // last known values of the resources, disabled if missing
+    ValueStoreSettings valueStore;
+
+    // on-disk history of the polled resources, uploaded in batches, disabled if missing
+    HistorySettings history;
+
+    // metrics exporters, disabled if missing
+    MetricsSettings metrics;
+
+    // "virtual" to handle each LWM2M request on its own (virtual if available) thread instead of the CoAP thread pool
+    String requestThreads;
+
+    Map<String, List<Instance>> objects;
+
+    // the compiled configuration this one was read from, null if read from json
+    transient ConfigImage image;
+
+    /**
+     * Returns all configured connections, the top-level single connection settings being exposed as
+     * {@link #DEFAULT_CONNECTION}.
+     */
+    Map<String, Connection> allConnections() {
+        Map<String, Connection> all = new LinkedHashMap<>();
+
+        if (connection != null) {
+            Connection legacy = new Connection();
+            legacy.connection = connection;
+            legacy.slave = slave;
+            legacy.tcpSettings = tcpSettings;
+            legacy.serialSettings = serialSettings;
+            legacy.asciiSettings = asciiSettings;
+            legacy.responseTimeout = responseTimeout;
+            legacy.writeWindowMillis = writeWindowMillis;
+
+            all.put(DEFAULT_CONNECTION, legacy);
+        }
+        if (connections != null) {
+            all.putAll(connections);
+        }
+
+        return all;
+    }
+
+    static class Connection {
+        String connection;
+        int slave;
+
+        // bounded request queue, requests waiting longer than queueTimeout (ms) are failed
+        int queueCapacity = 256;
+        long queueTimeout = 10000;
+
+        // time (ms) to wait for a response
+        int responseTimeout = 1000;
+
+        // consecutive I/O failures or timeouts after which the connection is considered down, requests then failing
+        // immediately until it is reestablished, with a backoff from reconnectMillis up to maxReconnectMillis
+        int failureThreshold = 3;
+        long reconnectMillis = 500;
+        long maxReconnectMillis = 30000;
+
+        // whether polled and stored values keep being served while the connection is down, instead of failing reads
+        boolean serveStale;
+
+        // window (ms) during which writes to neighbouring addresses are combined, 0 to send them immediately
+        long writeWindowMillis;
+
+        // reads and writes of the servers pending at once per slave, further ones failing immediately, 0 for no limit
+        int maxSlaveRequests = 8;
+        // time (ms) a server request waits for the connection, queueTimeout + responseTimeout if 0
+        long maxWaitMillis;
+
+        TcpSettings tcpSettings;
+        SerialSettings serialSettings;
+        AsciiSettings asciiSettings;
+
+        // serves the connection to other processes, not shared if missing
+        BrokerSettings broker;
+    }
+
+    static class BrokerSettings {
+        // local by default, the clients being processes of the same host
+        String host = "127.0.0.1";
+        int port;
 
-    Map<String, List<Map<String, Resource>>> objects;
+        // requests of the clients queued on the connection at once, and queued per client beyond which they are
+        // answered 'busy'
+        int maxInFlight = 2;
+        int maxQueued = 64;
+    }
 
     static class TcpSettings {
         String node;
         int port;
         boolean keepalive;
+
+        // outstanding requests allowed on the socket, values above 1 enable pipelining
+        int maxInFlight;
+    }
+
+    static class ValueStoreSettings {
+        // resources kept
+        int capacity = 10000;
+        // age (ms) after which a value is no longer served
+        long maxAgeMillis = 60000;
+
+        // optional file the values are snapshotted to every snapshotMillis, and reloaded from on startup
+        String snapshot;
+        long snapshotMillis = 10000;
+    }
+
+    static class HistorySettings {
+        String file;
+        // samples kept per resource, the oldest ones being overwritten
+        int samplesPerResource = 1024;
+
+        // where samples are POSTed as SenML JSON, defaults to the 'dp' path of the LWM2M server
+        String uploadUri;
+        long uploadMillis = 10000;
+        // samples per upload request
+        int batchSize = 100;
+    }
+
+    static class MetricsSettings {
+        // port of the Prometheus endpoint (/metrics), 0 to disable it
+        int prometheusPort;
+        // interface the endpoint listens on, all of them if missing
+        String prometheusHost;
+
+        // whether to register the metrics MBean
+        boolean jmx;
     }
 
     static class SerialSettings {
@@ -26,6 +171,14 @@ class ModbusConfig {
         int dataBits;
         int stopBits;
         int parity;
+
+        // drive the port with frame timing derived from the baud rate, instead of the jlibmodbus defaults
+        boolean preciseTiming;
+        // silences (µs) within (t1.5) and between (t3.5) frames, 1.5 and 3.5 characters if 0
+        int interCharMicros;
+        int interFrameMicros;
+        // extra silence (µs) before each request, for devices slow to switch back to receiving
+        int turnaroundMicros;
     }
 
     static class AsciiSettings {
@@ -34,10 +187,97 @@ class ModbusConfig {
         int parity;
     }
 
+    /**
+     * An object instance: its resources keyed by resource id, plus an optional connection and slave shared by all of
+     * them.
+     */
+    static class Instance {
+        String connection;
+        Integer slave;
+
+        Map<String, Resource> resources = new LinkedHashMap<>();
+    }
+
     static class Resource {
         String type;
         int startAddress;
         int quantity;
         long pollMillis;
+
+        // optional overrides of the instance/connection defaults
+        String connection;
+        Integer slave;
+
+        // decoding of register values: int16, uint16 (default), int32, uint32, int64, uint64, float32 or float64
+        String dataType;
+        // low word first / low byte first within each register
+        boolean wordSwap;
+        boolean byteSwap;
+        // linear transformation applied on read as 'value * scale + offset' and reverted on write
+        double scale = 1;
+        double offset;
+        // exposes a single bit of the value as a boolean when >= 0
+        int bit = -1;
+
+        // changes of polled or observed values notified: only beyond deadband (absolute) and deadbandPercent (of the
+        // last notified value), or faster than rateOfChange (per second), and at most every minNotifyMillis
+        double deadband;
+        double deadbandPercent;
+        double rateOfChange;
+        long minNotifyMillis;
+
+        private transient ModbusTable table;
+        private transient RegisterCodec codec;
+
+        ModbusTable table() {
+            if (table == null) {
+                table = ModbusTable.of(type);
+            }
+            return table;
+        }
+
+        RegisterCodec codec() {
+            if (codec == null) {
+                codec = RegisterCodec.of(this);
+            }
+            return codec;
+        }
+
+        /**
+         * @return the number of registers or bits covered by this resource
+         */
+        int length() {
+            // revert to 1 if no existence
+            int count = quantity == 0 ? 1 : quantity;
+
+            return table().bits ? count : count * codec().width;
+        }
+    }
+
+    /**
+     * Reads an instance where resources and the optional "connection" and "slave" settings are siblings.
+     */
+    static class InstanceDeserializer implements JsonDeserializer<Instance> {
+
+        @Override
+        public Instance deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
+                throws JsonParseException {
+            Instance instance = new Instance();
+
+            for (Map.Entry<String, JsonElement> entry : json.getAsJsonObject().entrySet()) {
+                switch (entry.getKey()) {
+                    case "connection":
+                        instance.connection = entry.getValue().getAsString();
+                        break;
+                    case "slave":
+                        instance.slave = entry.getValue().getAsInt();
+                        break;
+                    default:
+                        instance.resources.put(entry.getKey(), context.deserialize(entry.getValue(), Resource.class));
+                }
+            }
+
+            return instance;
+        }
     }
 }
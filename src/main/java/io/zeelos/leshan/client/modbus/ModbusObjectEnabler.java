@@ -0,0 +1,206 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.leshan.client.request.ServerIdentity;
+import org.eclipse.leshan.client.resource.LwM2mInstanceEnabler;
+import org.eclipse.leshan.client.resource.LwM2mInstanceEnablerFactory;
+import org.eclipse.leshan.client.resource.ObjectEnabler;
+import org.eclipse.leshan.core.model.ObjectModel;
+import org.eclipse.leshan.core.node.LwM2mObject;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.eclipse.leshan.core.request.ContentFormat;
+import org.eclipse.leshan.core.request.ObserveRequest;
+import org.eclipse.leshan.core.request.ReadRequest;
+import org.eclipse.leshan.core.request.WriteAttributesRequest;
+import org.eclipse.leshan.core.response.ObserveResponse;
+import org.eclipse.leshan.core.response.ReadResponse;
+import org.eclipse.leshan.core.response.WriteAttributesResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link ObjectEnabler} for {@link ModbusSensor} instances which accepts the notification attributes (pmin, pmax,
+ * gt, lt, st) written by the server and enforces them at the gateway.
+ * <p>
+ * Reads and observations do not hold the lock of the object while the devices answer, so that the instances bound to
+ * a slow device do not delay the others.
+ */
+class ModbusObjectEnabler extends ObjectEnabler {
+
+    private static final Logger log = LoggerFactory.getLogger(ModbusObjectEnabler.class);
+
+    private final ModbusSensor.Operations operations;
+
+    ModbusObjectEnabler(int id, ObjectModel objectModel, Map<Integer, LwM2mInstanceEnabler> instances,
+            LwM2mInstanceEnablerFactory instanceFactory, ContentFormat defaultContentFormat) {
+        super(id, objectModel, instances, instanceFactory, defaultContentFormat);
+        operations = new ModbusSensor.Operations(id);
+    }
+
+    @Override
+    public ReadResponse read(ServerIdentity identity, ReadRequest request) {
+        LwM2mPath path = request.getPath();
+        if (identity.isLwm2mBootstrapServer()) {
+            return ReadResponse.methodNotAllowed();
+        }
+        if (isUnknown(identity, path)) {
+            return ReadResponse.notFound();
+        }
+        if (!isReadable(identity, path)) {
+            return ReadResponse.methodNotAllowed();
+        }
+
+        return doRead(identity, request);
+    }
+
+    @Override
+    public ObserveResponse observe(ServerIdentity identity, ObserveRequest request) {
+        LwM2mPath path = request.getPath();
+        if (identity.isLwm2mBootstrapServer()) {
+            return ObserveResponse.methodNotAllowed();
+        }
+        if (isUnknown(identity, path)) {
+            return ObserveResponse.notFound();
+        }
+        if (!isReadable(identity, path)) {
+            return ObserveResponse.methodNotAllowed();
+        }
+
+        return doObserve(identity, request);
+    }
+
+    // the checks of the default read, our objects never being the security object
+    private boolean isUnknown(ServerIdentity identity, LwM2mPath path) {
+        return !identity.isSystem() && path.isResource()
+                && getObjectModel().resources.get(path.getResourceId()) == null;
+    }
+
+    private boolean isReadable(ServerIdentity identity, LwM2mPath path) {
+        if (identity.isSystem() || !path.isResource()) {
+            return true;
+        }
+
+        return getObjectModel().resources.get(path.getResourceId()).operations.isReadable();
+    }
+
+    /**
+     * Reads all instances of the object as a single batch, see {@link ModbusSensor#readInstances}.
+     */
+    @Override
+    protected ReadResponse doRead(ServerIdentity identity, ReadRequest request) {
+        LwM2mPath path = request.getPath();
+        if (!path.isObject()) {
+            LwM2mInstanceEnabler instance = getInstance(path.getObjectInstanceId());
+            if (instance == null) {
+                return ReadResponse.notFound();
+            }
+
+            return path.isResource() ?
+                    instance.read(identity, path.getResourceId()) :
+                    instance.read(identity);
+        }
+
+        operations.read.increment();
+
+        try {
+            return ReadResponse.success(new LwM2mObject(getId(), ModbusSensor.readInstances(identity, sensors())));
+        } catch (Exception e) {
+            log.error("an error occurred during read()", e);
+
+            return ReadResponse.internalServerError(e.getMessage());
+        }
+    }
+
+    @Override
+    protected ObserveResponse doObserve(ServerIdentity identity, ObserveRequest request) {
+        LwM2mPath path = request.getPath();
+        if (!path.isObject()) {
+            LwM2mInstanceEnabler instance = getInstance(path.getObjectInstanceId());
+            if (instance == null) {
+                return ObserveResponse.notFound();
+            }
+
+            return path.isResource() ?
+                    instance.observe(identity, path.getResourceId()) :
+                    instance.observe(identity);
+        }
+
+        List<LwM2mObjectInstance> instances = new ArrayList<>();
+        for (ModbusSensor sensor : sensors()) {
+            ObserveResponse response = sensor.observe(identity);
+            if (response.isSuccess()) {
+                instances.add((LwM2mObjectInstance) response.getContent());
+            }
+        }
+
+        return ObserveResponse.success(new LwM2mObject(getId(), instances));
+    }
+
+    /**
+     * Samples the resources covered by an observation, see {@link ObservationTracker}.
+     */
+    void observed(LwM2mPath path) {
+        for (ModbusSensor sensor : sensors()) {
+            sensor.observed(path);
+        }
+    }
+
+    /**
+     * Stops sampling the resources which none of the given observations covers any more.
+     */
+    void retainObserved(Collection<LwM2mPath> paths) {
+        for (ModbusSensor sensor : sensors()) {
+            sensor.retainObserved(paths);
+        }
+    }
+
+    /**
+     * @return the instances of the object, taken under its lock as they may be changed by a reload, to be read
+     *         without it
+     */
+    private synchronized List<ModbusSensor> sensors() {
+        List<ModbusSensor> sensors = new ArrayList<>();
+        for (Integer instanceId : getAvailableInstanceIds()) {
+            sensors.add((ModbusSensor) getInstance(instanceId));
+        }
+
+        return sensors;
+    }
+
+    @Override
+    public synchronized WriteAttributesResponse writeAttributes(ServerIdentity identity,
+            WriteAttributesRequest request) {
+        LwM2mPath path = request.getPath();
+        Map<String, Object> attributes = request.getAttributes().getMap();
+
+        if (path.isResourceInstance()) {
+            return WriteAttributesResponse.badRequest("attributes on resource instances are not supported");
+        }
+
+        if (path.isObject()) {
+            for (Integer instanceId : getAvailableInstanceIds()) {
+                ((ModbusSensor) getInstance(instanceId)).writeAttributes(null, attributes);
+            }
+            return WriteAttributesResponse.success();
+        }
+
+        LwM2mInstanceEnabler instance = getInstance(path.getObjectInstanceId());
+        if (instance == null) {
+            return WriteAttributesResponse.notFound();
+        }
+
+        ModbusSensor sensor = (ModbusSensor) instance;
+        if (path.isResource() && sensor.binding(path.getResourceId()) == null) {
+            return WriteAttributesResponse.notFound();
+        }
+
+        sensor.writeAttributes(path.getResourceId(), attributes);
+
+        return WriteAttributesResponse.success();
+    }
+}
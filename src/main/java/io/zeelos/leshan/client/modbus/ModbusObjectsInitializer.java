@@ -0,0 +1,39 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.leshan.client.resource.LwM2mInstanceEnabler;
+import org.eclipse.leshan.client.resource.ObjectEnabler;
+import org.eclipse.leshan.client.resource.ObjectsInitializer;
+import org.eclipse.leshan.core.model.LwM2mModel;
+import org.eclipse.leshan.core.model.ObjectModel;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates a {@link ModbusObjectEnabler} for objects made of {@link ModbusSensor} instances, and the default enabler for
+ * all the others.
+ */
+class ModbusObjectsInitializer extends ObjectsInitializer {
+
+    ModbusObjectsInitializer(LwM2mModel model) {
+        super(model);
+    }
+
+    @Override
+    protected ObjectEnabler createNodeEnabler(ObjectModel objectModel) {
+        LwM2mInstanceEnabler[] sensors = instances.get(objectModel.id);
+        if (sensors == null || sensors.length == 0 || !(sensors[0] instanceof ModbusSensor)) {
+            return super.createNodeEnabler(objectModel);
+        }
+
+        // modbus sensors are created with their instance id
+        Map<Integer, LwM2mInstanceEnabler> instances = new HashMap<>();
+        for (LwM2mInstanceEnabler sensor : sensors) {
+            sensor.setModel(objectModel);
+            instances.put(sensor.getId(), sensor);
+        }
+
+        return new ModbusObjectEnabler(objectModel.id, objectModel, instances, getFactoryFor(objectModel),
+                getContentFormat(objectModel.id));
+    }
+}
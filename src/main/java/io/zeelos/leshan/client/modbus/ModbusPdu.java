@@ -0,0 +1,160 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusNumberException;
+import com.intelligt.modbus.jlibmodbus.exception.ModbusProtocolException;
+import com.intelligt.modbus.jlibmodbus.utils.ModbusExceptionCode;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encoding of Modbus request PDUs and decoding of their responses, shared by the transports which do not go through
+ * jlibmodbus.
+ */
+final class ModbusPdu {
+
+    static final int READ_COILS = 0x01;
+    static final int READ_DISCRETE_INPUTS = 0x02;
+    static final int READ_HOLDING_REGISTERS = 0x03;
+    static final int READ_INPUT_REGISTERS = 0x04;
+    static final int WRITE_SINGLE_COIL = 0x05;
+    static final int WRITE_SINGLE_REGISTER = 0x06;
+    static final int WRITE_MULTIPLE_COILS = 0x0F;
+    static final int WRITE_MULTIPLE_REGISTERS = 0x10;
+
+    private ModbusPdu() {
+    }
+
+    static byte[] read(int function, int startAddress, int quantity) {
+        return ByteBuffer.allocate(5).put((byte) function).putShort((short) startAddress).putShort((short) quantity)
+                .array();
+    }
+
+    static byte[] writeSingleRegister(int address, int value) {
+        return ByteBuffer.allocate(5).put((byte) WRITE_SINGLE_REGISTER).putShort((short) address)
+                .putShort((short) value).array();
+    }
+
+    static byte[] writeSingleCoil(int address, boolean value) {
+        return ByteBuffer.allocate(5).put((byte) WRITE_SINGLE_COIL).putShort((short) address)
+                .putShort((short) (value ? 0xFF00 : 0x0000)).array();
+    }
+
+    static byte[] writeMultipleRegisters(int startAddress, int[] values) {
+        ByteBuffer pdu = ByteBuffer.allocate(6 + values.length * 2).put((byte) WRITE_MULTIPLE_REGISTERS)
+                .putShort((short) startAddress).putShort((short) values.length).put((byte) (values.length * 2));
+        for (int value : values) {
+            pdu.putShort((short) value);
+        }
+
+        return pdu.array();
+    }
+
+    static byte[] writeMultipleCoils(int startAddress, boolean[] values) {
+        int byteCount = (values.length + 7) / 8;
+
+        byte[] pdu = ByteBuffer.allocate(6 + byteCount).put((byte) WRITE_MULTIPLE_COILS).putShort((short) startAddress)
+                .putShort((short) values.length).put((byte) byteCount).array();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i]) {
+                pdu[6 + i / 8] |= 1 << (i % 8);
+            }
+        }
+
+        return pdu;
+    }
+
+    /**
+     * Encodes the response to a read, from an {@code int[]} of registers or a {@code boolean[]} of bits.
+     */
+    static byte[] readResponse(int function, Object values) {
+        if (values instanceof boolean[]) {
+            boolean[] bits = (boolean[]) values;
+            byte[] pdu = new byte[2 + (bits.length + 7) / 8];
+            pdu[0] = (byte) function;
+            pdu[1] = (byte) (pdu.length - 2);
+            for (int i = 0; i < bits.length; i++) {
+                if (bits[i]) {
+                    pdu[2 + i / 8] |= 1 << (i % 8);
+                }
+            }
+            return pdu;
+        }
+
+        int[] registers = (int[]) values;
+        ByteBuffer pdu = ByteBuffer.allocate(2 + registers.length * 2).put((byte) function)
+                .put((byte) (registers.length * 2));
+        for (int register : registers) {
+            pdu.putShort((short) register);
+        }
+
+        return pdu.array();
+    }
+
+    static byte[] exceptionResponse(int function, int code) {
+        return new byte[] { (byte) (function | 0x80), (byte) code };
+    }
+
+    /**
+     * @return the quantity of registers or bits addressed by a read request PDU
+     */
+    static int quantity(byte[] request) {
+        return ((request[3] & 0xFF) << 8) | (request[4] & 0xFF);
+    }
+
+    /**
+     * Decodes the response to the given request, as an {@code int[]} for register reads, a {@code boolean[]} for bit
+     * reads and {@code null} for writes.
+     *
+     * @throws ModbusProtocolException if the slave answered with an exception response
+     * @throws ModbusIOException if a read response does not carry exactly the requested quantity
+     */
+    static Object decode(byte[] request, ByteBuffer response)
+            throws ModbusProtocolException, ModbusNumberException, ModbusIOException {
+        int function = response.get() & 0xFF;
+
+        if ((function & 0x80) != 0) {
+            throw new ModbusProtocolException(ModbusExceptionCode.get(response.get() & 0xFF));
+        }
+        if (function != (request[0] & 0xFF)) {
+            throw new ModbusNumberException("unexpected function code in response", function);
+        }
+
+        switch (function) {
+            case READ_HOLDING_REGISTERS:
+            case READ_INPUT_REGISTERS: {
+                int[] registers = new int[quantity(request)];
+                checkByteCount(response, registers.length * 2);
+                for (int i = 0; i < registers.length; i++) {
+                    registers[i] = response.getShort() & 0xFFFF;
+                }
+                return registers;
+            }
+            case READ_COILS:
+            case READ_DISCRETE_INPUTS: {
+                boolean[] bits = new boolean[quantity(request)];
+                int byteCount = (bits.length + 7) / 8;
+                checkByteCount(response, byteCount);
+                int offset = response.position();
+
+                for (int i = 0; i < bits.length; i++) {
+                    bits[i] = (response.get(offset + i / 8) & (1 << (i % 8))) != 0;
+                }
+                response.position(offset + byteCount);
+                return bits;
+            }
+            default:
+                // write responses echo the request, nothing to return
+                return null;
+        }
+    }
+
+    // a short response would otherwise be padded and served as values
+    private static void checkByteCount(ByteBuffer response, int expected) throws ModbusIOException {
+        int byteCount = response.get() & 0xFF;
+        if (byteCount != expected || response.remaining() < byteCount) {
+            throw new ModbusIOException("response of " + byteCount + " bytes (" + response.remaining()
+                    + " received) where " + expected + " were requested");
+        }
+    }
+}
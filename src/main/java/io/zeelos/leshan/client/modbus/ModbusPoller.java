@@ -0,0 +1,420 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Background polling engine that refreshes the value cache of every {@link ModbusSensor} resource which declares a
+ * {@code pollMillis} cadence in the modbus configuration.
+ * <p>
+ * Resources sharing the same cadence are coalesced by the {@link ReadPlanner} into block reads, which are then queued
+ * on the I/O worker of their connection. The blocks of a cadence are spread over its period instead of being polled in
+ * a burst.
+ * <p>
+ * Observed resources without a cadence are sampled through the same blocks: a resource which a block polled at least as
+ * often already reads rides along it, the others being planned in blocks of their own at the sampling cadence.
+ * <p>
+ * The polls of a connection are kept within a share of its time, as estimated by its {@link BusTime}: when they would
+ * need more, they get stretched, resources which are observed or were recently read by a server yielding last.
+ */
+class ModbusPoller {
+
+    private static final Logger log = LoggerFactory.getLogger(ModbusPoller.class);
+
+    // share of the time of a connection given to polls, the rest being left to the requests of the servers
+    private static final double POLL_BUDGET = 0.8;
+    // share of the poll budget which other resources keep when a connection is saturated
+    private static final double IDLE_SHARE = 0.1;
+    // resources read by a server within this window are treated as observed ones
+    private static final long WANTED_MILLIS = 60_000;
+
+    private static final long REBALANCE_MILLIS = 1_000;
+    private static final long REPORT_MILLIS = 60_000;
+
+    private final ScheduledExecutorService scheduler;
+    private final ReadPlanner planner;
+    private final long sampleMillis;
+
+    // records the polled values when the history is enabled
+    private SampleBuffer history;
+
+    private final List<PollTask> tasks = new CopyOnWriteArrayList<>();
+
+    // observed resources without 'pollMillis', see #resample
+    private final List<ReadPlanner.ReadPoint> sampled = new ArrayList<>();
+
+    // connections which polls are currently stretched, only accessed from the scheduler thread
+    private final Set<ModbusChannel> saturated = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * @param maxReadGap see {@link ReadPlanner}
+     * @param sampleMillis the cadence at which observed resources without 'pollMillis' are sampled
+     */
+    ModbusPoller(int maxReadGap, long sampleMillis) {
+        // only triggers the polls, the bus access itself happens on the connection workers
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "modbus-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.planner = new ReadPlanner(maxReadGap);
+        this.sampleMillis = sampleMillis;
+    }
+
+    ReadPlanner getPlanner() {
+        return planner;
+    }
+
+    /**
+     * Records every polled value of the resources buffered by the given history, to be called before {@link #start}.
+     */
+    void setHistory(SampleBuffer history) {
+        this.history = history;
+    }
+
+    void start(Collection<ModbusSensor> sensors) {
+        poll(polled(sensors));
+
+        scheduler.scheduleWithFixedDelay(this::rebalance, REBALANCE_MILLIS, REBALANCE_MILLIS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(this::report, REPORT_MILLIS, REPORT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Replaces the polls of sensors, on a configuration reload: the blocks reading any of the removed sensors are
+     * cancelled, and the other resources they were reading are planned again along with the added sensors. The blocks
+     * of the other sensors keep running untouched.
+     */
+    synchronized void replace(Collection<ModbusSensor> removed, Collection<ModbusSensor> added) {
+        Set<ModbusSensor> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(removed);
+
+        List<ReadPlanner.ReadPoint> points = new ArrayList<>();
+        int cancelled = 0;
+        for (PollTask task : tasks) {
+            // the sampling blocks are all planned again below
+            if (task.sampling || task.block.points.stream().noneMatch(point -> gone.contains(point.sensor))) {
+                continue;
+            }
+
+            task.cancel();
+            cancelled++;
+            task.block.points.stream().filter(point -> !gone.contains(point.sensor)).forEach(points::add);
+        }
+        points.addAll(polled(added));
+
+        log.info("Cancelled {} poll blocks, planning {} resources again", cancelled, points.size());
+        poll(points);
+
+        sampled.removeIf(point -> gone.contains(point.sensor));
+        resample();
+    }
+
+    private static List<ReadPlanner.ReadPoint> polled(Collection<ModbusSensor> sensors) {
+        List<ReadPlanner.ReadPoint> points = new ArrayList<>();
+        sensors.forEach(sensor -> sensor.getBindings().forEach(binding -> {
+            if (binding.resource.pollMillis > 0) {
+                points.add(new ReadPlanner.ReadPoint(sensor, binding));
+            }
+        }));
+
+        return points;
+    }
+
+    private void poll(List<ReadPlanner.ReadPoint> points) {
+        // group polled resources by cadence
+        Map<Long, List<ReadPlanner.ReadPoint>> cadences = new TreeMap<>();
+        points.forEach(point -> cadences.computeIfAbsent(point.binding.resource.pollMillis, k -> new ArrayList<>())
+                .add(point));
+
+        cadences.forEach((pollMillis, cadence) -> {
+            List<ReadPlanner.ReadBlock> blocks = planner.plan(cadence);
+            for (int i = 0; i < blocks.size(); i++) {
+                new PollTask(blocks.get(i), pollMillis, false).start(pollMillis * i / blocks.size());
+
+                log.info("Polling {} every {} ms", blocks.get(i), pollMillis);
+            }
+        });
+    }
+
+    /**
+     * Starts sampling observed resources, so that their observers get notified of changes happening on the device.
+     */
+    synchronized void sample(ModbusSensor sensor, Collection<ResourceBinding> bindings) {
+        bindings.forEach(binding -> sampled.add(new ReadPlanner.ReadPoint(sensor, binding)));
+        resample();
+    }
+
+    /**
+     * Stops sampling resources nobody observes any more.
+     */
+    synchronized void unsample(ModbusSensor sensor, Collection<ResourceBinding> bindings) {
+        if (sampled.removeIf(point -> point.sensor == sensor && bindings.contains(point.binding))) {
+            resample();
+        }
+    }
+
+    /**
+     * Routes the sampled resources through the poll blocks: a resource within the range of a block polled at least at
+     * the sampling cadence rides along it, the others are planned together in blocks polled at the sampling cadence.
+     */
+    private void resample() {
+        Map<PollTask, List<ReadPlanner.ReadPoint>> riders = new IdentityHashMap<>();
+        List<ReadPlanner.ReadPoint> others = new ArrayList<>();
+        for (ReadPlanner.ReadPoint point : sampled) {
+            PollTask carrier = tasks.stream().filter(task -> task.carries(point)).findFirst().orElse(null);
+            if (carrier != null) {
+                riders.computeIfAbsent(carrier, k -> new ArrayList<>()).add(point);
+            } else {
+                others.add(point);
+            }
+        }
+
+        for (PollTask task : tasks) {
+            if (task.sampling) {
+                task.cancel();
+            } else {
+                task.riders = riders.getOrDefault(task, Collections.emptyList());
+            }
+        }
+
+        List<ReadPlanner.ReadBlock> blocks = planner.plan(others);
+        for (int i = 0; i < blocks.size(); i++) {
+            new PollTask(blocks.get(i), sampleMillis, true).start(sampleMillis * i / blocks.size());
+        }
+
+        log.info("Sampling {} observed resources, {} along poll blocks and the others in {} blocks every {} ms",
+                sampled.size(), sampled.size() - others.size(), blocks.size(), sampleMillis);
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Fits the polls of each connection in its budget, stretching first the blocks nobody currently reads.
+     */
+    private void rebalance() {
+        long since = System.currentTimeMillis() - WANTED_MILLIS;
+
+        Map<ModbusChannel, List<PollTask>> channels = new IdentityHashMap<>();
+        for (PollTask task : tasks) {
+            channels.computeIfAbsent(task.block.channel, k -> new ArrayList<>()).add(task);
+        }
+
+        channels.forEach((channel, group) -> {
+            // share of the time of the connection needed by each class of blocks at their configured cadence
+            boolean[] wanted = new boolean[group.size()];
+            double wantedLoad = 0;
+            double idleLoad = 0;
+            for (int i = 0; i < group.size(); i++) {
+                PollTask task = group.get(i);
+                wanted[i] = task.isWanted(since);
+                if (wanted[i]) {
+                    wantedLoad += task.load();
+                } else {
+                    idleLoad += task.load();
+                }
+            }
+
+            double wantedScale = 1;
+            double idleScale = 1;
+            if (wantedLoad + idleLoad > POLL_BUDGET) {
+                double idleBudget = Math.min(idleLoad, Math.max(POLL_BUDGET - wantedLoad, POLL_BUDGET * IDLE_SHARE));
+                wantedScale = Math.max(1, wantedLoad / (POLL_BUDGET - idleBudget));
+                idleScale = idleLoad > 0 ? Math.max(1, idleLoad / idleBudget) : 1;
+            }
+
+            for (int i = 0; i < group.size(); i++) {
+                PollTask task = group.get(i);
+                task.periodMillis = Math.round(task.pollMillis * (wanted[i] ? wantedScale : idleScale));
+            }
+
+            if (wantedScale > 1 || idleScale > 1) {
+                if (saturated.add(channel)) {
+                    log.warn("connection '{}' needs {}% of its time for polls, stretching them by {} ({} for read "
+                                    + "and observed resources)", channel.getName(),
+                            Math.round((wantedLoad + idleLoad) * 100), format(idleScale), format(wantedScale));
+                }
+            } else if (saturated.remove(channel)) {
+                log.info("connection '{}' is back to the configured poll rates", channel.getName());
+            }
+        });
+    }
+
+    /**
+     * Logs the achieved poll rate of each resource against the configured one, at info level for resources lagging
+     * behind.
+     */
+    private void report() {
+        long now = System.nanoTime();
+
+        for (PollTask task : tasks) {
+            double achieved = task.polls.getAndSet(0) * 1e9 / Math.max(1, now - task.countedFrom);
+            double configured = 1000.0 / task.pollMillis;
+            task.countedFrom = now;
+
+            boolean lagging = achieved < configured * 0.9;
+            if (lagging ? log.isInfoEnabled() : log.isDebugEnabled()) {
+                for (ReadPlanner.ReadPoint point : task.block.points) {
+                    String message = "{} polled {}/s, configured {}/s";
+                    if (lagging) {
+                        log.info(message, point.sensor.path(point.binding), format(achieved), format(configured));
+                    } else {
+                        log.debug(message, point.sensor.path(point.binding), format(achieved), format(configured));
+                    }
+                }
+            }
+        }
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+
+    /**
+     * The polls of a block, rescheduled after each one so that its period can change.
+     */
+    private class PollTask implements Runnable {
+        final ReadPlanner.ReadBlock block;
+        final long pollMillis;
+        // sampling of observed resources
+        final boolean sampling;
+
+        // observed resources which the block reads along its own ones, see #resample
+        volatile List<ReadPlanner.ReadPoint> riders = Collections.emptyList();
+
+        // the period actually applied, stretched when the connection is saturated
+        volatile long periodMillis;
+
+        // whether the previous poll is still queued on the connection
+        final AtomicBoolean pending = new AtomicBoolean();
+
+        // completed polls since the last report
+        final AtomicInteger polls = new AtomicInteger();
+        volatile long countedFrom = System.nanoTime();
+
+        // next poll time (ns), only accessed from the scheduler thread
+        private long due;
+
+        // set when the block is no longer polled, after a configuration reload
+        private volatile boolean cancelled;
+
+        PollTask(ReadPlanner.ReadBlock block, long pollMillis, boolean sampling) {
+            this.block = block;
+            this.pollMillis = pollMillis;
+            this.sampling = sampling;
+            this.periodMillis = pollMillis;
+        }
+
+        void start(long delayMillis) {
+            tasks.add(this);
+
+            due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+            scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        void cancel() {
+            cancelled = true;
+            tasks.remove(this);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+
+            poll();
+
+            // keep the phase, unless late in which case the missed polls are dropped
+            long now = System.nanoTime();
+            due = Math.max(due + TimeUnit.MILLISECONDS.toNanos(periodMillis), now);
+
+            if (!scheduler.isShutdown()) {
+                scheduler.schedule(this, due - now, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * @return true if this block already reads the given resource, at least at the sampling cadence
+         */
+        boolean carries(ReadPlanner.ReadPoint point) {
+            ResourceBinding binding = point.binding;
+            return !sampling && pollMillis <= sampleMillis && block.channel == binding.channel
+                    && block.slave == binding.slave && block.table == binding.table
+                    && block.start <= binding.startAddress && binding.startAddress + binding.length <= block.end();
+        }
+
+        boolean isWanted(long since) {
+            if (sampling || !riders.isEmpty()) {
+                return true;
+            }
+
+            for (ReadPlanner.ReadPoint point : block.points) {
+                if (point.sensor.isWanted(point.binding, since)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        /**
+         * @return the share of the time of the connection needed to poll at the configured cadence
+         */
+        double load() {
+            return block.channel.getBusTime().estimateRead(block.table, block.quantity)
+                    / (TimeUnit.MILLISECONDS.toNanos(pollMillis) * 1.0);
+        }
+
+        private void poll() {
+            // skip this cycle if the connection is down or did not even serve the previous one yet
+            if (!block.channel.isAvailable() || !pending.compareAndSet(false, true)) {
+                block.channel.pollsSkipped.increment();
+                return;
+            }
+
+            long scheduled = due;
+            block.channel.read(block.table, block.slave, block.start, block.quantity, ModbusChannel.Priority.POLL)
+                    .whenComplete((values, e) -> {
+                        pending.set(false);
+                        block.channel.pollLag.observeNanos(System.nanoTime() - scheduled);
+
+                        if (e != null) {
+                            log.warn("unable to poll {}", block, e);
+                            return;
+                        }
+
+                        polls.incrementAndGet();
+                        long now = System.currentTimeMillis();
+                        for (ReadPlanner.ReadPoint point : block.points) {
+                            Object value = block.slice(values, point);
+                            point.sensor.update(point.binding, value);
+
+                            if (history != null && !sampling) {
+                                history.record(point.sensor.key(point.binding), now,
+                                        point.binding.numericValue(value));
+                            }
+                        }
+                        for (ReadPlanner.ReadPoint point : riders) {
+                            point.sensor.update(point.binding, block.slice(values, point));
+                        }
+                    });
+        }
+    }
+}
@@ -1,17 +1,31 @@
 package io.zeelos.leshan.client.modbus;
 
-import com.intelligt.modbus.jlibmodbus.master.ModbusMaster;
-import io.zeelos.leshan.client.modbus.utils.Utils;
 import org.eclipse.leshan.client.request.ServerIdentity;
 import org.eclipse.leshan.client.resource.BaseInstanceEnabler;
+import org.eclipse.leshan.core.model.ObjectModel;
 import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mObjectInstance;
+import org.eclipse.leshan.core.node.LwM2mPath;
 import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.response.ObserveResponse;
 import org.eclipse.leshan.core.response.ReadResponse;
 import org.eclipse.leshan.core.response.WriteResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
 
 public class ModbusSensor extends BaseInstanceEnabler {
 
@@ -22,48 +36,110 @@ public class ModbusSensor extends BaseInstanceEnabler {
     public static final String COIL = "coil";
     public static final String DISCRETE_INPUT = "discrete-input";
 
-    private Map<String, ModbusConfig.Resource> config;
+    // coalesces the reads of sensors which are not attached to a poller
+    private static final ReadPlanner DEFAULT_PLANNER = new ReadPlanner(0);
 
-    private int slave;
-    private ModbusMaster master;
+    // instance level connection and slave, may be null
+    private String connection;
+    private Integer slave;
+    private Map<String, ModbusChannel> channels;
+    private ModbusPoller poller;
+    // last known values, may be null
+    private ValueStore store;
+
+    // dispatch table compiled from the configuration: resource ids in ascending order and their bindings
+    private int[] ids = new int[0];
+    private ResourceBinding[] bindings = new ResourceBinding[0];
+
+    // binding index of each id from the first one, -1 for gaps; only built when ids are dense enough
+    private int firstId;
+    private int[] slots;
+
+    // last polled or sampled value (int[] or boolean[]) of each resource read in the background, by binding index
+    private AtomicReferenceArray<Object> values = new AtomicReferenceArray<>(0);
+
+    // observed resources, and the notification attributes written by the server
+    private AtomicIntegerArray observed = new AtomicIntegerArray(0);
+    private AtomicReferenceArray<NotificationPolicy> policies = new AtomicReferenceArray<>(0);
+    // dead-band and rate of change filters of the configuration, by binding index, null for unfiltered resources
+    private ChangeFilter[] filters = new ChangeFilter[0];
+
+    // counters of the operations served, see #operations
+    private volatile Operations operations;
+
+    // time (ms) of the last read of each resource by a server, which the poller favours when a connection is saturated
+    private AtomicLongArray lastRead = new AtomicLongArray(0);
 
     public ModbusSensor() {
     }
 
-    public ModbusSensor(int slave, ModbusMaster master, Map<String, ModbusConfig.Resource> config) {
-        this.config = config;
-        this.slave = slave;
-        this.master = master;
+    public ModbusSensor(int id, ModbusConfig.Instance instance, Map<String, ModbusChannel> channels,
+            ModbusPoller poller) {
+        this(id, instance, channels, poller, null);
+    }
+
+    public ModbusSensor(int id, ModbusConfig.Instance instance, Map<String, ModbusChannel> channels,
+            ModbusPoller poller, ValueStore store) {
+        super(id);
+        this.poller = poller;
+        this.store = store;
+        this.connection = instance.connection;
+        this.slave = instance.slave;
+        this.channels = channels;
+
+        compile(instance.resources);
+    }
+
+    /**
+     * Binds every configured resource once, failing early on a connection or a type which does not exist.
+     */
+    private void compile(Map<String, ModbusConfig.Resource> config) {
+        ids = config.keySet().stream().mapToInt(Integer::parseInt).sorted().toArray();
+        bindings = new ResourceBinding[ids.length];
+        filters = new ChangeFilter[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            ModbusConfig.Resource resource = config.get(String.valueOf(ids[i]));
+            ModbusChannel channel = channelOf(resource);
+
+            bindings[i] = new ResourceBinding(ids[i], i, resource, channel, slaveOf(resource, channel));
+            filters[i] = ChangeFilter.of(resource);
+        }
+
+        if (ids.length > 0 && ids[ids.length - 1] - ids[0] < ids.length * 4 + 16) {
+            firstId = ids[0];
+            slots = new int[ids[ids.length - 1] - firstId + 1];
+            Arrays.fill(slots, -1);
+            for (int i = 0; i < ids.length; i++) {
+                slots[ids[i] - firstId] = i;
+            }
+        }
+
+        values = new AtomicReferenceArray<>(ids.length);
+        observed = new AtomicIntegerArray(ids.length);
+        policies = new AtomicReferenceArray<>(ids.length);
+        lastRead = new AtomicLongArray(ids.length);
     }
 
     @Override
     public ReadResponse read(ServerIdentity identity, int resourceid) {
-        log.debug("Read on Device Resource " + resourceid);
+        log.debug("Read on Device Resource {}", resourceid);
+        operations().read.increment();
 
-        ModbusConfig.Resource resource = config.get(String.valueOf(resourceid));
+        ResourceBinding binding = binding(resourceid);
+        if (binding == null) {
+            return ReadResponse.notFound();
+        }
+        lastRead.set(binding.index, System.currentTimeMillis());
 
         try {
-            switch (resource.type) {
-                case HOLDING_REGISTER:
-                case INPUT_REGISTER: {
-                    int[] response = readRegister(resource.type, slave, resource.startAddress, resource.quantity);
-
-                    return resource.quantity == 0 ?
-                            ReadResponse.success(resourceid, response[0]) :
-                            ReadResponse.success(resourceid, Utils.asMapInteger(response), ResourceModel.Type.INTEGER);
-                }
-                case COIL:
-                case DISCRETE_INPUT: {
-                    boolean[] response = readBoolean(resource.type, slave, resource.startAddress, resource.quantity);
-
-                    return resource.quantity == 0 ?
-                            ReadResponse.success(resourceid, response[0]) :
-                            ReadResponse.success(resourceid, Utils.asMapBoolean(response), ResourceModel.Type.BOOLEAN);
-                }
-
-                default:
-                    return super.read(identity, resourceid);
+            // polled and observed resources are answered from memory once sampled
+            Object value = cached(binding);
+            if (value == null) {
+                value = readDevice(binding);
             }
+
+            return binding.toResponse(value);
         } catch (Exception e) {
             log.error("an error occurred during read()", e);
 
@@ -72,69 +148,566 @@ public class ModbusSensor extends BaseInstanceEnabler {
     }
 
     @Override
-    public WriteResponse write(ServerIdentity identity, int resourceid, LwM2mResource value) {
-        log.debug("Write on Device Resource " + resourceid + " value " + value);
-
-        ModbusConfig.Resource resource = config.get(String.valueOf(resourceid));
+    public ReadResponse read(ServerIdentity identity) {
+        log.debug("Read on Device Instance {}", getId());
+        operations().read.increment();
 
         try {
-            switch (resource.type) {
-                case HOLDING_REGISTER:
-                    if (value.isMultiInstances()) {
-                        master.writeMultipleRegisters(slave, resource.startAddress, Utils.asArrInteger(value.getValues()));
-                    } else {
-                        master.writeSingleRegister(slave, resource.startAddress, (int) (long) value.getValue());
+            return ReadResponse.success(readInstances(identity, Collections.singletonList(this)).get(0));
+        } catch (Exception e) {
+            log.error("an error occurred during read()", e);
+
+            return ReadResponse.internalServerError(e.getMessage());
+        }
+    }
+
+    /**
+     * Reads all the readable resources of several instances at once: the resources which are not cached are coalesced
+     * into block reads, all queued before waiting for any so that a connection serves them back to back.
+     * <p>
+     * Resources of a failed block are left out of the result, unless every block failed.
+     */
+    static List<LwM2mObjectInstance> readInstances(ServerIdentity identity, List<ModbusSensor> sensors)
+            throws Exception {
+        // raw values of the readable resources by binding index, from the cache or else from the batch
+        Map<ModbusSensor, Object[]> values = new IdentityHashMap<>();
+        List<ReadPlanner.ReadPoint> points = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        for (ModbusSensor sensor : sensors) {
+            Object[] raw = new Object[sensor.bindings.length];
+            for (ResourceBinding binding : sensor.bindings) {
+                if (sensor.isReadable(identity, binding)) {
+                    sensor.lastRead.set(binding.index, now);
+                    raw[binding.index] = sensor.cached(binding);
+                    if (raw[binding.index] == null) {
+                        points.add(new ReadPlanner.ReadPoint(sensor, binding));
                     }
+                }
+            }
+            values.put(sensor, raw);
+        }
 
-                    fireResourcesChange(resourceid);
+        fetch(points, (point, value) -> values.get(point.sensor)[point.binding.index] = value);
 
-                    return WriteResponse.success();
+        List<LwM2mObjectInstance> instances = new ArrayList<>(sensors.size());
+        for (ModbusSensor sensor : sensors) {
+            Object[] raw = values.get(sensor);
 
-                case COIL:
-                    if (value.isMultiInstances()) {
-                        master.writeMultipleCoils(slave, resource.startAddress, Utils.asArrBoolean(value.getValues()));
+            List<LwM2mResource> resources = new ArrayList<>(raw.length);
+            for (ResourceBinding binding : sensor.bindings) {
+                if (raw[binding.index] != null) {
+                    resources.add((LwM2mResource) binding.toResponse(raw[binding.index]).getContent());
+                }
+            }
+
+            instances.add(new LwM2mObjectInstance(sensor.getId(), resources));
+        }
+
+        return instances;
+    }
+
+    private static void fetch(List<ReadPlanner.ReadPoint> points, BiConsumer<ReadPlanner.ReadPoint, Object> consumer)
+            throws Exception {
+        if (points.isEmpty()) {
+            return;
+        }
+
+        ModbusPoller poller = points.get(0).sensor.poller;
+        List<ReadPlanner.ReadBlock> blocks = (poller != null ? poller.getPlanner() : DEFAULT_PLANNER).plan(points);
+
+        long start = System.currentTimeMillis();
+        List<CompletableFuture<Object>> futures = new ArrayList<>(blocks.size());
+        for (ReadPlanner.ReadBlock block : blocks) {
+            futures.add(block.channel.read(block.table, block.slave, block.start, block.quantity,
+                    ModbusChannel.Priority.READ));
+        }
+
+        Exception failure = null;
+        int failed = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            ReadPlanner.ReadBlock block = blocks.get(i);
+            try {
+                // the blocks are served concurrently, the wait is bounded from the time they were all queued
+                Object response = ModbusChannel.await(futures.get(i),
+                        start + block.channel.getMaxWaitMillis() - System.currentTimeMillis());
+
+                for (ReadPlanner.ReadPoint point : block.points) {
+                    Object value = block.slice(response, point);
+                    point.sensor.remember(point.binding, value);
+                    consumer.accept(point, value);
+                }
+            } catch (Exception e) {
+                log.warn("unable to read {}", block, e);
+
+                // served anyway if all its resources have a last known value
+                boolean served = true;
+                for (ReadPlanner.ReadPoint point : block.points) {
+                    Object value = point.sensor.lastKnown(point.binding);
+                    if (value != null) {
+                        consumer.accept(point, value);
                     } else {
-                        master.writeSingleCoil(slave, resource.startAddress, (boolean) value.getValue());
+                        served = false;
                     }
+                }
+
+                if (!served) {
+                    failure = e;
+                    failed++;
+                }
+            }
+        }
+
+        if (failed > 0 && failed == blocks.size()) {
+            throw failure;
+        }
+    }
+
+    // same rule as the default instance read: the model operations only apply to servers
+    private boolean isReadable(ServerIdentity identity, ResourceBinding binding) {
+        if (model == null || identity.isSystem()) {
+            return true;
+        }
+
+        ResourceModel resourceModel = model.resources.get(binding.id);
+        return resourceModel != null && resourceModel.operations.isReadable();
+    }
+
+    @Override
+    public WriteResponse write(ServerIdentity identity, int resourceid, LwM2mResource value) {
+        log.debug("Write on Device Resource {} value {}", resourceid, value);
+        operations().write.increment();
+
+        ResourceBinding binding = binding(resourceid);
+        if (binding == null) {
+            return WriteResponse.notFound();
+        }
+        if (!binding.isWritable()) {
+            return super.write(identity, resourceid, value);
+        }
+
+        try {
+            ModbusChannel.await(binding.write(value), binding.channel.getMaxWaitMillis());
+
+            // force the next read to hit the device until the poller catches up
+            values.set(binding.index, null);
+
+            fireResourcesChange(resourceid);
+
+            return WriteResponse.success();
+        } catch (IllegalArgumentException e) {
+            return WriteResponse.badRequest(e.getMessage());
+        } catch (Exception e) {
+            log.error("error occured during write()", e);
 
-                    fireResourcesChange(resourceid);
+            return WriteResponse.internalServerError(e.getMessage());
+        }
+    }
 
-                    return WriteResponse.success();
+    /**
+     * Writes the resources of the instance sent by a single request (Write on /O/I) together: the values bound to
+     * contiguous addresses of a slave go in a single Modbus request, and one notification reports all the changes.
+     * Nothing is sent if one of the values does not fit its resource. A modbus value cannot be reset, so a Replace has
+     * to carry every writable resource of the instance.
+     */
+    @Override
+    public WriteResponse write(ServerIdentity identity, boolean replace, LwM2mObjectInstance value) {
+        log.debug("Write on Device Instance {} value {}", getId(), value);
+        operations().write.increment();
+
+        Map<Integer, LwM2mResource> resources = value.getResources();
+        if (replace) {
+            for (ResourceBinding binding : bindings) {
+                if (binding.isWritable() && isWritable(identity, binding.id) && !resources.containsKey(binding.id)) {
+                    return WriteResponse.badRequest("replace of instance " + getId() + " lacks resource " + binding.id
+                            + ", a modbus value cannot be reset");
+                }
+            }
+        }
 
-                default:
-                    return super.write(identity, resourceid, value);
+        WriteCombiner.Bulk bulk = new WriteCombiner.Bulk();
+        List<ResourceBinding> written = new ArrayList<>();
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        long maxWaitMillis = 0;
+
+        try {
+            for (LwM2mResource resource : resources.values()) {
+                if (!isWritable(identity, resource.getId())) {
+                    // like the default instance write, resources the model does not allow to write are skipped
+                    continue;
+                }
+
+                // same answers as a Write on the resource, before anything is sent
+                ResourceBinding binding = binding(resource.getId());
+                if (binding == null) {
+                    return WriteResponse.notFound();
+                }
+                if (!binding.isWritable()) {
+                    WriteResponse response = super.write(identity, resource.getId(), resource);
+                    if (response.isFailure()) {
+                        return response;
+                    }
+                    continue;
+                }
+
+                futures.add(binding.write(resource, bulk));
+                written.add(binding);
+                maxWaitMillis = Math.max(maxWaitMillis, binding.channel.getMaxWaitMillis());
             }
+        } catch (IllegalArgumentException e) {
+            return WriteResponse.badRequest(e.getMessage());
+        }
+
+        if (written.isEmpty()) {
+            return WriteResponse.success();
+        }
+
+        bulk.send();
+
+        try {
+            ModbusChannel.await(CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])), maxWaitMillis);
         } catch (Exception e) {
             log.error("error occured during write()", e);
 
+            // part of the values may have reached the device, the next read hits it
+            written.forEach(binding -> values.set(binding.index, null));
+
             return WriteResponse.internalServerError(e.getMessage());
         }
+
+        // force the next read to hit the device until the poller catches up
+        int[] ids = new int[written.size()];
+        for (int i = 0; i < ids.length; i++) {
+            values.set(written.get(i).index, null);
+            ids[i] = written.get(i).id;
+        }
+
+        fireResourcesChange(ids);
+
+        return WriteResponse.success();
+    }
+
+    // same rule as the default instance write
+    private boolean isWritable(ServerIdentity identity, int resourceid) {
+        if (model == null || identity.isSystem()) {
+            return true;
+        }
+
+        ResourceModel resourceModel = model.resources.get(resourceid);
+        return resourceModel != null && resourceModel.operations.isWritable();
+    }
+
+    @Override
+    public ObserveResponse observe(ServerIdentity identity) {
+        operations().observe.increment();
+        sample(Arrays.asList(bindings));
+
+        return super.observe(identity);
+    }
+
+    @Override
+    public ObserveResponse observe(ServerIdentity identity, int resourceid) {
+        operations().observe.increment();
+        ResourceBinding binding = binding(resourceid);
+        if (binding == null) {
+            return ObserveResponse.notFound();
+        }
+
+        sample(Collections.singletonList(binding));
+
+        return super.observe(identity, resourceid);
+    }
+
+    /**
+     * Takes over the observations and the notification attributes of the instance this one replaces, on a
+     * configuration reload, for the resources they both expose.
+     */
+    void inherit(ModbusSensor previous) {
+        List<ResourceBinding> observed = new ArrayList<>();
+        for (ResourceBinding binding : bindings) {
+            ResourceBinding old = previous.binding(binding.id);
+            if (old == null) {
+                continue;
+            }
+
+            policies.set(binding.index, previous.policies.get(old.index));
+            if (previous.observed.get(old.index) != 0) {
+                observed.add(binding);
+            }
+        }
+        sample(observed);
+    }
+
+    /**
+     * Samples the resources of this instance covered by an observation of the given path.
+     */
+    void observed(LwM2mPath path) {
+        List<ResourceBinding> covered = new ArrayList<>();
+        for (ResourceBinding binding : bindings) {
+            if (covers(path, binding)) {
+                covered.add(binding);
+            }
+        }
+        sample(covered);
+    }
+
+    /**
+     * Stops sampling the resources of this instance which none of the given observations covers any more.
+     */
+    void retainObserved(Collection<LwM2mPath> paths) {
+        List<ResourceBinding> unobserved = new ArrayList<>();
+        for (ResourceBinding binding : bindings) {
+            if (paths.stream().noneMatch(path -> covers(path, binding))
+                    && observed.compareAndSet(binding.index, 1, 0) && binding.resource.pollMillis <= 0) {
+                unobserved.add(binding);
+            }
+        }
+        if (poller != null && !unobserved.isEmpty()) {
+            poller.unsample(this, unobserved);
+        }
+    }
+
+    private boolean covers(LwM2mPath path, ResourceBinding binding) {
+        return path.isObject() || path.getObjectInstanceId().equals(getId())
+                && (path.isObjectInstance() || path.getResourceId() == binding.id);
+    }
+
+    /**
+     * @return the binding of a resource, null if this instance does not expose it
+     */
+    ResourceBinding binding(int resourceid) {
+        int index;
+        if (slots != null) {
+            int slot = resourceid - firstId;
+            index = slot >= 0 && slot < slots.length ? slots[slot] : -1;
+        } else {
+            index = Arrays.binarySearch(ids, resourceid);
+        }
+
+        return index >= 0 ? bindings[index] : null;
+    }
+
+    List<ResourceBinding> getBindings() {
+        return Collections.unmodifiableList(Arrays.asList(bindings));
+    }
+
+    /**
+     * @return true if a resource is observed or was read by a server since the given time (ms)
+     */
+    boolean isWanted(ResourceBinding binding, long since) {
+        return observed.get(binding.index) != 0 || lastRead.get(binding.index) >= since;
+    }
+
+    /**
+     * @return the LWM2M path of a resource, for logs
+     */
+    String path(ResourceBinding binding) {
+        return "/" + (model != null ? String.valueOf(model.id) : "?") + "/" + getId() + "/" + binding.id;
+    }
+
+    /**
+     * Applies the notification attributes written by the server to a resource, or to all of them if null.
+     */
+    void writeAttributes(Integer resourceid, Map<String, Object> attributes) {
+        if (resourceid == null) {
+            for (ResourceBinding binding : bindings) {
+                writeAttributes(binding.id, attributes);
+            }
+            return;
+        }
+
+        ResourceBinding binding = binding(resourceid);
+        if (binding == null) {
+            return;
+        }
+
+        policies.compareAndSet(binding.index, null, new NotificationPolicy());
+        policies.get(binding.index).set(attributes);
+    }
+
+    /**
+     * Refreshes the cached value of a resource read in the background and notifies observers when the value changed,
+     * within the limits of the filter of the resource, then of its notification attributes.
+     */
+    void update(ResourceBinding binding, Object value) {
+        remember(binding, value);
+
+        Object previous = values.getAndSet(binding.index, value);
+        boolean changed = !Objects.deepEquals(previous, value);
+
+        ChangeFilter filter = filters[binding.index];
+        NotificationPolicy policy = policies.get(binding.index);
+        if (filter == null && policy == null) {
+            if (changed) {
+                fireResourcesChange(binding.id);
+            }
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        double numeric = binding.numericValue(value);
+        if (filter != null) {
+            changed = filter.onSample(numeric, changed, now);
+        }
+        if (policy == null ? changed : policy.onSample(numeric, changed, now)) {
+            fireResourcesChange(binding.id);
+        }
+    }
+
+    /**
+     * @return the polled or sampled value of a resource, else its last known value until its first poll or while its
+     *         connection is down and serves stale values, null if the device has to be read
+     */
+    private Object cached(ResourceBinding binding) {
+        boolean available = binding.channel.isAvailable();
+
+        Object value = values.get(binding.index);
+        if (value == null || !(available || binding.channel.isServingStale())) {
+            value = binding.resource.pollMillis > 0 || !available ? lastKnown(binding) : null;
+        }
+
+        (value != null ? binding.channel.cacheHits : binding.channel.cacheMisses).increment();
+
+        return value;
+    }
+
+    private Object readDevice(ResourceBinding binding) throws Exception {
+        try {
+            Object value = ModbusChannel.await(binding.read(ModbusChannel.Priority.READ),
+                    binding.channel.getMaxWaitMillis());
+            remember(binding, value);
+
+            return value;
+        } catch (Exception e) {
+            Object value = lastKnown(binding);
+            if (value == null) {
+                throw e;
+            }
+
+            log.warn("unable to read {}, serving its last known value: {}", path(binding), e.toString());
+            return value;
+        }
+    }
+
+    private void remember(ResourceBinding binding, Object value) {
+        if (store != null) {
+            store.put(key(binding), value);
+        }
+    }
+
+    /**
+     * @return the last known value of a resource within the max age of the store, null if none or if its connection is
+     *         down and does not serve stale values
+     */
+    private Object lastKnown(ResourceBinding binding) {
+        // serveStale=false wins over the store: reads then fail fast while the connection is down
+        if (store == null || !(binding.channel.isAvailable() || binding.channel.isServingStale())) {
+            return null;
+        }
+
+        ValueStore.Entry entry = store.get(key(binding));
+
+        // a restored value may come from a different configuration
+        if (entry == null || (entry.value instanceof int[] ?
+                ((int[]) entry.value).length :
+                ((boolean[]) entry.value).length) != binding.length) {
+            return null;
+        }
+
+        log.debug("serving the {} value of {} read {} ms ago", entry.quality, path(binding),
+                System.currentTimeMillis() - entry.timestamp);
+
+        return entry.value;
     }
 
-    //-------ModBus-------
-    private int[] readRegister(String type, int slave, int startAddress, int quantity) throws Exception {
-        // revert to 1 if no existence
-        quantity = (quantity == 0 ? 1 : quantity);
+    /**
+     * @return the key of a resource in the value store and the sample buffer
+     */
+    long key(ResourceBinding binding) {
+        return ValueStore.key(model != null ? model.id : -1, getId(), binding.id);
+    }
 
-        if (type.equals(HOLDING_REGISTER)) {
-            return master.readHoldingRegisters(slave, startAddress, quantity);
-        } else if (type.equals(INPUT_REGISTER)) {
-            return master.readInputRegisters(slave, startAddress, quantity);
+    @Override
+    public void setModel(ObjectModel model) {
+        super.setModel(model);
+        operations = null;
+    }
+
+    // resolved on first use, once the model is known
+    private Operations operations() {
+        Operations operations = this.operations;
+        if (operations == null) {
+            operations = new Operations(model != null ? model.id : -1);
+            this.operations = operations;
         }
 
-        throw new IllegalStateException("readRegister() - unknown type requested");
+        return operations;
     }
 
-    private boolean[] readBoolean(String type, int slave, int startAddress, int quantity) throws Exception {
-        // revert to 1 if no existance
-        quantity = (quantity == 0 ? 1 : quantity);
+    /**
+     * Counters of the LWM2M operations served on an object.
+     */
+    static final class Operations {
+        final Metrics.Counter read;
+        final Metrics.Counter write;
+        final Metrics.Counter observe;
+
+        Operations(int objectId) {
+            read = counter(objectId, "read");
+            write = counter(objectId, "write");
+            observe = counter(objectId, "observe");
+        }
+
+        private static Metrics.Counter counter(int objectId, String operation) {
+            return Metrics.REGISTRY.counter("lwm2m_operations_total",
+                    "LWM2M operations served, by object and operation", "object", String.valueOf(objectId),
+                    "operation", operation);
+        }
+    }
+
+    // starts sampling the observed resources which are not already polled or sampled
+    private void sample(Collection<ResourceBinding> targets) {
+        List<ResourceBinding> sampled = new ArrayList<>();
+        for (ResourceBinding binding : targets) {
+            if (observed.compareAndSet(binding.index, 0, 1) && binding.resource.pollMillis <= 0) {
+                sampled.add(binding);
+            }
+        }
+        if (poller != null && !sampled.isEmpty()) {
+            poller.sample(this, sampled);
+        }
+    }
+
+    /**
+     * Resolves the connection of a resource: its own, else the one of this instance, else the default one.
+     */
+    private ModbusChannel channelOf(ModbusConfig.Resource resource) {
+        String name = resource.connection != null ? resource.connection : connection;
+
+        ModbusChannel channel;
+        if (name != null) {
+            channel = channels.get(name);
+        } else {
+            channel = channels.size() == 1 ?
+                    channels.values().iterator().next() :
+                    channels.get(ModbusConfig.DEFAULT_CONNECTION);
+        }
+
+        if (channel == null) {
+            throw new IllegalStateException("no connection '" + name + "' found in modbus configuration file!");
+        }
+
+        return channel;
+    }
 
-        if (type.equals(COIL)) {
-            return master.readCoils(slave, startAddress, quantity);
-        } else if (type.equals(DISCRETE_INPUT)) {
-            return master.readDiscreteInputs(slave, startAddress, quantity);
+    /**
+     * Resolves the slave of a resource: its own, else the one of this instance, else the one of its connection.
+     */
+    private int slaveOf(ModbusConfig.Resource resource, ModbusChannel channel) {
+        if (resource.slave != null) {
+            return resource.slave;
         }
 
-        throw new IllegalStateException("readBoolean() - unknown type requested");
+        return slave != null ? slave : channel.getSlave();
     }
 }
@@ -0,0 +1,40 @@
+package io.zeelos.leshan.client.modbus;
+
+/**
+ * The four Modbus data tables a resource can be bound to, resolved once from the 'type' of its configuration.
+ */
+enum ModbusTable {
+
+    HOLDING_REGISTER(ModbusSensor.HOLDING_REGISTER, ModbusPdu.READ_HOLDING_REGISTERS, false, true),
+    INPUT_REGISTER(ModbusSensor.INPUT_REGISTER, ModbusPdu.READ_INPUT_REGISTERS, false, false),
+    COIL(ModbusSensor.COIL, ModbusPdu.READ_COILS, true, true),
+    DISCRETE_INPUT(ModbusSensor.DISCRETE_INPUT, ModbusPdu.READ_DISCRETE_INPUTS, true, false);
+
+    // the 'type' of the resources in the modbus configuration
+    final String type;
+    final int readFunction;
+    final boolean bits;
+    final boolean writable;
+
+    ModbusTable(String type, int readFunction, boolean bits, boolean writable) {
+        this.type = type;
+        this.readFunction = readFunction;
+        this.bits = bits;
+        this.writable = writable;
+    }
+
+    static ModbusTable of(String type) {
+        for (ModbusTable table : values()) {
+            if (table.type.equals(type)) {
+                return table;
+            }
+        }
+
+        throw new IllegalStateException("unknown resource type '" + type + "' in modbus configuration file!");
+    }
+
+    @Override
+    public String toString() {
+        return type;
+    }
+}
@@ -0,0 +1,97 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.leshan.core.attributes.Attribute;
+
+import java.util.Map;
+
+/**
+ * Decides when an observed resource notifies, following the LWM2M notification attributes written by the server:
+ * <ul>
+ * <li>pmin: minimum period between two notifications (seconds)</li>
+ * <li>pmax: maximum period without notification (seconds)</li>
+ * <li>gt/lt: notify when the value crosses the threshold</li>
+ * <li>st: notify when the value moved by at least this step since the last notification</li>
+ * </ul>
+ * Without any of gt/lt/st every change notifies.
+ */
+class NotificationPolicy {
+
+    private long pminMillis;
+    private long pmaxMillis;
+    private Double gt;
+    private Double lt;
+    private Double st;
+
+    // last notified value, NaN until a first sample is known
+    private double lastValue = Double.NaN;
+    private long lastNotify;
+    private boolean pending;
+
+    /**
+     * Applies written attributes, an attribute without value removing the previous one.
+     */
+    synchronized void set(Map<String, Object> attributes) {
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            Object value = attribute.getValue();
+
+            switch (attribute.getKey()) {
+                case Attribute.MINIMUM_PERIOD:
+                    pminMillis = value == null ? 0 : ((Number) value).longValue() * 1000;
+                    break;
+                case Attribute.MAXIMUM_PERIOD:
+                    pmaxMillis = value == null ? 0 : ((Number) value).longValue() * 1000;
+                    break;
+                case Attribute.GREATER_THAN:
+                    gt = value == null ? null : ((Number) value).doubleValue();
+                    break;
+                case Attribute.LESSER_THAN:
+                    lt = value == null ? null : ((Number) value).doubleValue();
+                    break;
+                case Attribute.STEP:
+                    st = value == null ? null : ((Number) value).doubleValue();
+                    break;
+                default:
+                    // other attributes (dim, ver) do not drive notifications
+            }
+        }
+    }
+
+    /**
+     * @param value the sampled value, NaN for values without numeric meaning (multiple instances)
+     * @param changed whether the sample differs from the previous one
+     * @return true if a notification must be sent now
+     */
+    synchronized boolean onSample(double value, boolean changed, long now) {
+        if (Double.isNaN(lastValue) && lastNotify == 0) {
+            // first sample, it is the reference for the conditions
+            lastValue = value;
+            lastNotify = now;
+            return false;
+        }
+
+        if (changed && triggers(value)) {
+            pending = true;
+        }
+
+        boolean due = pending && now - lastNotify >= pminMillis || pmaxMillis > 0 && now - lastNotify >= pmaxMillis;
+        if (due) {
+            pending = false;
+            lastValue = value;
+            lastNotify = now;
+        }
+
+        return due;
+    }
+
+    private boolean triggers(double value) {
+        if (gt == null && lt == null && st == null || Double.isNaN(value) || Double.isNaN(lastValue)) {
+            return true;
+        }
+
+        return crosses(gt, value) || crosses(lt, value) || st != null && Math.abs(value - lastValue) >= st;
+    }
+
+    private boolean crosses(Double threshold, double value) {
+        return threshold != null && (lastValue > threshold) != (value > threshold);
+    }
+}
@@ -0,0 +1,134 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.californium.core.observe.ObserveRelation;
+import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.core.server.resources.ResourceObserver;
+import org.eclipse.leshan.client.californium.LeshanClient;
+import org.eclipse.leshan.client.observer.LwM2mClientObserverAdapter;
+import org.eclipse.leshan.client.resource.LwM2mObjectEnabler;
+import org.eclipse.leshan.client.servers.Server;
+import org.eclipse.leshan.core.node.LwM2mPath;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the observations of the servers on an object, so that its resources are sampled in the background only while
+ * an observation covers them: the sampling of a resource stops when the last one is cancelled, and the observations of
+ * a server are dropped when it deregisters.
+ */
+class ObservationTracker implements ResourceObserver {
+
+    private static final Logger log = LoggerFactory.getLogger(ObservationTracker.class);
+
+    private final ModbusObjectEnabler enabler;
+    private final Resource resource;
+
+    // path of each established observation of the object
+    private final Map<ObserveRelation, LwM2mPath> relations = new HashMap<>();
+
+    private ObservationTracker(ModbusObjectEnabler enabler, Resource resource) {
+        this.enabler = enabler;
+        this.resource = resource;
+    }
+
+    /**
+     * Tracks the observations on the modbus objects of a client, to be called before it starts.
+     */
+    static void install(LeshanClient client, List<LwM2mObjectEnabler> enablers) {
+        List<ObservationTracker> trackers = new ArrayList<>();
+        for (LwM2mObjectEnabler enabler : enablers) {
+            Resource resource = client.getCoapServer().getRoot().getChild(String.valueOf(enabler.getId()));
+            if (enabler instanceof ModbusObjectEnabler && resource != null) {
+                ObservationTracker tracker = new ObservationTracker((ModbusObjectEnabler) enabler, resource);
+                resource.addObserver(tracker);
+                trackers.add(tracker);
+            }
+        }
+
+        client.addObserver(new LwM2mClientObserverAdapter() {
+            @Override
+            public void onDeregistrationSuccess(Server server, String registrationID) {
+                trackers.forEach(tracker -> tracker.cancel(server));
+            }
+        });
+    }
+
+    @Override
+    public synchronized void addedObserveRelation(ObserveRelation relation) {
+        LwM2mPath path = path(relation);
+        if (path != null) {
+            relations.put(relation, path);
+
+            // the observe request started the sampling, which a concurrent cancellation may have stopped since
+            enabler.observed(path);
+        }
+    }
+
+    @Override
+    public synchronized void removedObserveRelation(ObserveRelation relation) {
+        if (relations.remove(relation) != null) {
+            enabler.retainObserved(relations.values());
+        }
+    }
+
+    /**
+     * Cancels the observations of a server which deregistered, it will not cancel them itself.
+     */
+    private void cancel(Server server) {
+        InetSocketAddress peer = server.getIdentity().getPeerAddress();
+
+        List<ObserveRelation> cancelled = new ArrayList<>();
+        synchronized (this) {
+            relations.keySet().stream().filter(relation -> peer.equals(relation.getSource()))
+                    .forEach(cancelled::add);
+        }
+
+        if (!cancelled.isEmpty()) {
+            log.info("Cancelling {} observations of {} on object {}", cancelled.size(), peer, enabler.getId());
+            // calls back removedObserveRelation
+            cancelled.forEach(ObserveRelation::cancel);
+        }
+    }
+
+    private LwM2mPath path(ObserveRelation relation) {
+        List<String> segments = relation.getExchange().getRequest().getOptions().getUriPath();
+        try {
+            switch (segments.size()) {
+                case 1:
+                    return new LwM2mPath(Integer.parseInt(segments.get(0)));
+                case 2:
+                    return new LwM2mPath(Integer.parseInt(segments.get(0)), Integer.parseInt(segments.get(1)));
+                case 3:
+                    return new LwM2mPath(Integer.parseInt(segments.get(0)), Integer.parseInt(segments.get(1)),
+                            Integer.parseInt(segments.get(2)));
+                default:
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            log.debug("ignoring observation of {} on {}", segments, resource.getName());
+            return null;
+        }
+    }
+
+    @Override
+    public void changedName(String old) {
+    }
+
+    @Override
+    public void changedPath(String old) {
+    }
+
+    @Override
+    public void addedChild(Resource child) {
+    }
+
+    @Override
+    public void removedChild(Resource child) {
+    }
+}
@@ -0,0 +1,391 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A non-blocking Modbus/TCP master keeping up to {@code maxInFlight} requests outstanding on a single socket, responses
+ * being matched to their request by MBAP transaction id.
+ * <p>
+ * All socket I/O happens on a single selector thread, callers only get futures. The selector thread also opens a new
+ * socket, with a backoff, whenever the previous one failed or the connection went down.
+ */
+class PipelinedTcpChannel extends ModbusChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelinedTcpChannel.class);
+
+    // MBAP header: transaction id, protocol id, length, unit id
+    private static final int MBAP_LENGTH = 7;
+    private static final int MAX_ADU_LENGTH = 260;
+
+    private final InetSocketAddress address;
+    private final boolean keepAlive;
+    private final int maxInFlight;
+    private final int responseTimeout;
+
+    // requests waiting for a free slot in the in-flight window
+    private final RequestQueue<Transaction> pending;
+
+    // only accessed from the selector thread
+    private final Map<Integer, Transaction> inFlight = new HashMap<>();
+    private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer inbound = ByteBuffer.allocate(MAX_ADU_LENGTH * 4);
+    private int transactionId;
+
+    private Selector selector;
+    private SocketChannel socket;
+    private Thread thread;
+    private volatile boolean running;
+
+    PipelinedTcpChannel(String name, int slave, InetSocketAddress address, boolean keepAlive, int maxInFlight,
+            int responseTimeout, int queueCapacity, long queueTimeout) {
+        super(name, slave, BusTime.tcp(maxInFlight));
+        this.pending = new RequestQueue<>(queueCapacity, queueTimeout);
+        this.address = address;
+        this.keepAlive = keepAlive;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.responseTimeout = responseTimeout;
+    }
+
+    @Override
+    void start() throws IOException {
+        selector = Selector.open();
+
+        try {
+            connect();
+        } catch (IOException e) {
+            // the selector thread keeps trying
+            down(e);
+        }
+
+        running = true;
+        thread = new Thread(this::loop, "modbus-" + getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    void stop() {
+        super.stop();
+        running = false;
+
+        if (thread != null) {
+            // may be waiting to reconnect
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    RequestQueue<?> getQueue() {
+        return pending;
+    }
+
+    @Override
+    CompletableFuture<Object> read(ModbusTable table, int slave, int startAddress, int quantity, Priority priority) {
+        return send(priority, slave, ModbusPdu.read(table.readFunction, startAddress, quantity));
+    }
+
+    @Override
+    CompletableFuture<Void> writeRegister(int slave, int address, int value) {
+        return send(Priority.WRITE, slave, ModbusPdu.writeSingleRegister(address, value)).thenApply(r -> null);
+    }
+
+    @Override
+    CompletableFuture<Void> writeRegisters(int slave, int startAddress, int[] values) {
+        return send(Priority.WRITE, slave, ModbusPdu.writeMultipleRegisters(startAddress, values)).thenApply(r -> null);
+    }
+
+    @Override
+    CompletableFuture<Void> writeCoil(int slave, int address, boolean value) {
+        return send(Priority.WRITE, slave, ModbusPdu.writeSingleCoil(address, value)).thenApply(r -> null);
+    }
+
+    @Override
+    CompletableFuture<Void> writeCoils(int slave, int startAddress, boolean[] values) {
+        return send(Priority.WRITE, slave, ModbusPdu.writeMultipleCoils(startAddress, values)).thenApply(r -> null);
+    }
+
+    private CompletableFuture<Object> send(Priority priority, int slave, byte[] pdu) {
+        Transaction transaction = new Transaction(priority, slave, pdu);
+
+        if (!admit(slave, priority, transaction.future)) {
+            return transaction.future;
+        }
+        if (!running) {
+            transaction.future.completeExceptionally(new ModbusIOException("connection '" + getName() + "' is closed"));
+            return transaction.future;
+        }
+        if (!isAvailable()) {
+            transaction.future.completeExceptionally(unavailable());
+            return transaction.future;
+        }
+
+        pending.offer(transaction);
+        if (!running) {
+            // closed in the meantime, the selector thread will not see it
+            pending.drain(new ModbusIOException("connection '" + getName() + "' is closed"));
+        } else {
+            selector.wakeup();
+        }
+
+        return transaction.future;
+    }
+
+    //-------Selector thread-------
+    private void loop() {
+        int attempt = 0;
+
+        while (running) {
+            try {
+                if (socket == null) {
+                    Thread.sleep(reconnectDelay(attempt++));
+                    connect();
+                    reconnected();
+                    attempt = 0;
+                    continue;
+                }
+
+                poll();
+            } catch (IOException e) {
+                if (socket != null) {
+                    log.warn("connection '{}' failed", getName(), e);
+                    reset(e);
+                } else {
+                    log.debug("unable to reconnect '{}'", getName(), e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        close();
+    }
+
+    private void connect() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(address, responseTimeout);
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(keepAlive);
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        socket = channel;
+    }
+
+    /**
+     * Fails the requests on a broken socket and closes it, the connection being down until a new one is opened.
+     */
+    private void reset(IOException cause) {
+        ModbusIOException failure = new ModbusIOException(cause);
+        inFlight.values().forEach(t -> t.future.completeExceptionally(failure));
+        inFlight.clear();
+        outbound.clear();
+        inbound.clear();
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("unable to close '{}'", getName(), e);
+        }
+        socket = null;
+
+        down(cause);
+        pending.drain(unavailable());
+    }
+
+    private void poll() throws IOException {
+        dispatch();
+        selector.select(timeUntilNextDeadline());
+
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if (key.isValid() && key.isReadable()) {
+                receive();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+        }
+
+        expire(System.currentTimeMillis());
+    }
+
+    /**
+     * Moves pending requests into the in-flight window and writes as much as the socket accepts.
+     */
+    private void dispatch() throws IOException {
+        Transaction transaction;
+        while (inFlight.size() < maxInFlight && (transaction = pending.poll()) != null) {
+            transactionId = (transactionId + 1) & 0xFFFF;
+            while (inFlight.containsKey(transactionId)) {
+                transactionId = (transactionId + 1) & 0xFFFF;
+            }
+
+            transaction.id = transactionId;
+            transaction.sentAt = System.nanoTime();
+            transaction.responseDeadline = System.currentTimeMillis() + responseTimeout;
+            inFlight.put(transaction.id, transaction);
+
+            ByteBuffer adu = ByteBuffer.allocate(MBAP_LENGTH + transaction.pdu.length);
+            adu.putShort((short) transaction.id).putShort((short) 0).putShort((short) (transaction.pdu.length + 1))
+                    .put((byte) transaction.slave).put(transaction.pdu).flip();
+            outbound.add(adu);
+        }
+
+        flush();
+    }
+
+    private void flush() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+            socket.write(buffer);
+            if (buffer.hasRemaining()) {
+                break;
+            }
+            outbound.poll();
+        }
+
+        socket.keyFor(selector).interestOps(outbound.isEmpty() ?
+                SelectionKey.OP_READ :
+                SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void receive() throws IOException {
+        if (socket.read(inbound) < 0) {
+            throw new IOException("connection closed by peer");
+        }
+
+        inbound.flip();
+        while (inbound.remaining() >= MBAP_LENGTH) {
+            int start = inbound.position();
+            int length = inbound.getShort(start + 4) & 0xFFFF;
+
+            if (length < 2 || length > MAX_ADU_LENGTH) {
+                throw new IOException("invalid MBAP length " + length);
+            }
+            if (inbound.remaining() < 6 + length) {
+                break;
+            }
+
+            int id = inbound.getShort(start) & 0xFFFF;
+            int protocol = inbound.getShort(start + 2) & 0xFFFF;
+            int unit = inbound.get(start + 6) & 0xFF;
+
+            ByteBuffer pdu = inbound.duplicate();
+            pdu.position(start + MBAP_LENGTH).limit(start + 6 + length);
+            inbound.position(start + 6 + length);
+
+            Transaction transaction = inFlight.remove(id);
+            if (transaction == null) {
+                log.debug("dropping response of unknown or expired transaction {}", id);
+                continue;
+            }
+            getBusTime().record(System.nanoTime() - transaction.sentAt, 0);
+            onCompletion(null);
+
+            if (protocol != 0 || unit != transaction.slave) {
+                transaction.future.completeExceptionally(new ModbusIOException("response of transaction " + id
+                        + " has protocol " + protocol + " and unit " + unit + ", expected 0 and " + transaction.slave));
+                continue;
+            }
+
+            try {
+                transaction.future.complete(ModbusPdu.decode(transaction.pdu, pdu));
+            } catch (Exception e) {
+                transaction.future.completeExceptionally(e);
+            }
+        }
+        inbound.compact();
+    }
+
+    private long timeUntilNextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (Transaction transaction : inFlight.values()) {
+            next = Math.min(next, transaction.responseDeadline);
+        }
+
+        // 0 means forever for select()
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next - System.currentTimeMillis());
+    }
+
+    private void expire(long now) throws IOException {
+        boolean down = false;
+
+        Iterator<Transaction> transactions = inFlight.values().iterator();
+        while (transactions.hasNext()) {
+            Transaction transaction = transactions.next();
+            if (transaction.responseDeadline <= now) {
+                transactions.remove();
+
+                String message = "no response for transaction " + transaction.id + " within " + responseTimeout
+                        + " ms";
+                ModbusIOException timeout = new ModbusIOException(message, new SocketTimeoutException(message));
+                transaction.future.completeExceptionally(timeout);
+                down |= onCompletion(timeout);
+            }
+        }
+
+        if (down) {
+            // the socket may be half open, start over with a new one
+            throw new IOException("too many timeouts");
+        }
+    }
+
+    private void close() {
+        running = false;
+
+        ModbusIOException closed = new ModbusIOException("connection '" + getName() + "' is closed");
+        inFlight.values().forEach(t -> t.future.completeExceptionally(closed));
+        inFlight.clear();
+
+        pending.drain(closed);
+
+        try {
+            if (socket != null) {
+                socket.close();
+            }
+            selector.close();
+        } catch (IOException e) {
+            log.warn("unable to close '{}'", getName(), e);
+        }
+    }
+
+    private static class Transaction extends RequestQueue.Entry<Object> {
+        final int slave;
+        final byte[] pdu;
+
+        int id;
+        long sentAt;
+        long responseDeadline;
+
+        Transaction(Priority priority, int slave, byte[] pdu) {
+            super(priority);
+            this.slave = slave;
+            this.pdu = pdu;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serves the metrics in the Prometheus text format on {@code http://host:port/metrics}.
+ */
+class PrometheusExporter implements MetricsExporter {
+
+    private static final Logger log = LoggerFactory.getLogger(PrometheusExporter.class);
+
+    private final Metrics metrics;
+    private final InetSocketAddress address;
+
+    private HttpServer server;
+
+    PrometheusExporter(Metrics metrics, String host, int port) {
+        this.metrics = metrics;
+        this.address = host != null ? new InetSocketAddress(host, port) : new InetSocketAddress(port);
+    }
+
+    @Override
+    public void start() throws IOException {
+        server = HttpServer.create(address, 0);
+        server.createContext("/metrics", this::handle);
+        server.start();
+
+        log.info("Serving metrics on http://{}:{}/metrics", address.getHostString(), server.getAddress().getPort());
+    }
+
+    @Override
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            byte[] body = format(metrics).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static String format(Metrics metrics) {
+        StringBuilder out = new StringBuilder();
+        metrics.collect(new Metrics.Visitor() {
+            @Override
+            public void family(String name, String type, String help) {
+                out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            }
+
+            @Override
+            public void sample(String name, String labels, double value) {
+                out.append(name);
+                if (!labels.isEmpty()) {
+                    out.append('{').append(labels).append('}');
+                }
+                out.append(' ');
+                if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                    out.append((long) value);
+                } else {
+                    out.append(value);
+                }
+                out.append('\n');
+            }
+        });
+
+        return out.toString();
+    }
+}
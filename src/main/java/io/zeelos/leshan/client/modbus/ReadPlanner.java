@@ -0,0 +1,114 @@
+package io.zeelos.leshan.client.modbus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merges the address ranges of several resources into the fewest Modbus block reads that still fit a single PDU, so
+ * that a poll cycle costs one round trip per block instead of one per resource.
+ */
+class ReadPlanner {
+
+    // PDU limits of function codes 0x01/0x02 and 0x03/0x04
+    static final int MAX_BITS = 2000;
+    static final int MAX_REGISTERS = 125;
+
+    private final int maxGap;
+
+    /**
+     * @param maxGap the number of unused addresses tolerated between two ranges before they get split in two requests
+     */
+    ReadPlanner(int maxGap) {
+        this.maxGap = Math.max(0, maxGap);
+    }
+
+    List<ReadBlock> plan(List<ReadPoint> points) {
+        // group by connection, slave and register table
+        Map<String, List<ReadPoint>> groups = new LinkedHashMap<>();
+        for (ReadPoint point : points) {
+            ResourceBinding binding = point.binding;
+            groups.computeIfAbsent(binding.channel.getName() + "/" + binding.slave + "/" + binding.table,
+                    k -> new ArrayList<>()).add(point);
+        }
+
+        List<ReadBlock> blocks = new ArrayList<>();
+        groups.values().forEach(group -> {
+            group.sort(Comparator.comparingInt(p -> p.binding.startAddress));
+
+            int limit = group.get(0).binding.table.bits ? MAX_BITS : MAX_REGISTERS;
+
+            ReadBlock block = null;
+            for (ReadPoint point : group) {
+                int start = point.binding.startAddress;
+                int end = start + point.binding.length;
+
+                if (block != null && start <= block.end() + maxGap && Math.max(block.end(), end) - block.start <= limit) {
+                    block.quantity = Math.max(block.end(), end) - block.start;
+                } else {
+                    block = new ReadBlock(point.binding.channel, point.binding.slave, point.binding.table, start,
+                            end - start);
+                    blocks.add(block);
+                }
+                block.points.add(point);
+            }
+        });
+
+        return blocks;
+    }
+
+    /**
+     * A single resource to read.
+     */
+    static class ReadPoint {
+        final ModbusSensor sensor;
+        final ResourceBinding binding;
+
+        ReadPoint(ModbusSensor sensor, ResourceBinding binding) {
+            this.sensor = sensor;
+            this.binding = binding;
+        }
+    }
+
+    /**
+     * A contiguous range read with a single request and sliced back into its resources.
+     */
+    static class ReadBlock {
+        final ModbusChannel channel;
+        final int slave;
+        final ModbusTable table;
+        final int start;
+        int quantity;
+
+        final List<ReadPoint> points = new ArrayList<>();
+
+        ReadBlock(ModbusChannel channel, int slave, ModbusTable table, int start, int quantity) {
+            this.channel = channel;
+            this.slave = slave;
+            this.table = table;
+            this.start = start;
+            this.quantity = quantity;
+        }
+
+        int end() {
+            return start + quantity;
+        }
+
+        Object slice(Object values, ReadPoint point) {
+            int from = point.binding.startAddress - start;
+            int to = from + point.binding.length;
+
+            return values instanceof int[] ?
+                    Arrays.copyOfRange((int[]) values, from, to) :
+                    Arrays.copyOfRange((boolean[]) values, from, to);
+        }
+
+        @Override
+        public String toString() {
+            return channel.getName() + "/" + slave + "/" + table + "[" + start + ".." + (end() - 1) + "] -> " + points.size() + " resource(s)";
+        }
+    }
+}
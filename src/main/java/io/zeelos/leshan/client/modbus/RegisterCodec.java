@@ -0,0 +1,249 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mResource;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Converts between raw 16-bit registers and typed resource values (integers of 16 to 64 bits, IEEE floats or single
+ * bits), applying word/byte order and a linear {@code value * scale + offset} transformation.
+ * <p>
+ * A codec is compiled once per resource from its configuration so decoding only does primitive arithmetic.
+ */
+class RegisterCodec {
+
+    enum DataType {
+        INT16(1, Short.MIN_VALUE, Short.MAX_VALUE),
+        UINT16(1, 0, 0xFFFF),
+        INT32(2, Integer.MIN_VALUE, Integer.MAX_VALUE),
+        UINT32(2, 0, 0xFFFFFFFFL),
+        INT64(4, Long.MIN_VALUE, Long.MAX_VALUE),
+        UINT64(4, 0, Long.MAX_VALUE),
+        FLOAT32(2, Long.MIN_VALUE, Long.MAX_VALUE),
+        FLOAT64(4, Long.MIN_VALUE, Long.MAX_VALUE);
+
+        final int width;
+        // range of the integer types
+        final long min;
+        final long max;
+
+        DataType(int width, long min, long max) {
+            this.width = width;
+            this.min = min;
+            this.max = max;
+        }
+    }
+
+    // the raw 16 bit registers, as read before this feature
+    static final RegisterCodec RAW = new RegisterCodec(DataType.UINT16, false, false, 1, 0, -1);
+
+    final DataType dataType;
+    final boolean wordSwap;
+    final boolean byteSwap;
+    final double scale;
+    final double offset;
+    final int bit;
+
+    // number of registers of a single value
+    final int width;
+    final ResourceModel.Type type;
+
+    private RegisterCodec(DataType dataType, boolean wordSwap, boolean byteSwap, double scale, double offset, int bit) {
+        this.dataType = dataType;
+        this.wordSwap = wordSwap;
+        this.byteSwap = byteSwap;
+        this.scale = scale;
+        this.offset = offset;
+        this.bit = bit;
+
+        this.width = dataType.width;
+        if (bit >= 0) {
+            this.type = ResourceModel.Type.BOOLEAN;
+        } else if (dataType == DataType.FLOAT32 || dataType == DataType.FLOAT64 || scale != 1 || offset != 0) {
+            this.type = ResourceModel.Type.FLOAT;
+        } else {
+            this.type = ResourceModel.Type.INTEGER;
+        }
+    }
+
+    static RegisterCodec of(ModbusConfig.Resource resource) {
+        DataType dataType = resource.dataType == null ?
+                DataType.UINT16 :
+                DataType.valueOf(resource.dataType.toUpperCase(Locale.ROOT));
+
+        if (resource.bit >= dataType.width * 16) {
+            throw new IllegalStateException("bit " + resource.bit + " out of range for " + resource.dataType);
+        }
+
+        if (dataType == DataType.UINT16 && !resource.wordSwap && !resource.byteSwap && resource.scale == 1
+                && resource.offset == 0 && resource.bit < 0) {
+            return RAW;
+        }
+
+        return new RegisterCodec(dataType, resource.wordSwap, resource.byteSwap, resource.scale, resource.offset,
+                resource.bit);
+    }
+
+    //-------decode-------
+    long decodeLong(int[] registers, int index) {
+        return signed(raw(registers, index * width));
+    }
+
+    double decodeDouble(int[] registers, int index) {
+        long raw = raw(registers, index * width);
+
+        double value;
+        switch (dataType) {
+            case FLOAT32:
+                value = Float.intBitsToFloat((int) raw);
+                break;
+            case FLOAT64:
+                value = Double.longBitsToDouble(raw);
+                break;
+            default:
+                value = signed(raw);
+        }
+
+        return value * scale + offset;
+    }
+
+    boolean decodeBit(int[] registers, int index) {
+        return (raw(registers, index * width) >>> bit & 1) != 0;
+    }
+
+    long[] decodeLongs(int[] registers, int count) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = decodeLong(registers, i);
+        }
+        return values;
+    }
+
+    double[] decodeDoubles(int[] registers, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = decodeDouble(registers, i);
+        }
+        return values;
+    }
+
+    boolean[] decodeBits(int[] registers, int count) {
+        boolean[] values = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = decodeBit(registers, i);
+        }
+        return values;
+    }
+
+    //-------encode-------
+
+    /**
+     * Encodes an integer or float resource value in the registers of the given value index.
+     *
+     * @throws IllegalArgumentException if the value is not a number or out of the range of the data type
+     */
+    void encode(Object value, int[] registers, int index) {
+        if (bit >= 0) {
+            throw new IllegalArgumentException("bit resources can not be written");
+        }
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(value + " is not a number");
+        }
+
+        long raw;
+        if (type == ResourceModel.Type.INTEGER) {
+            raw = ((Number) value).longValue();
+            if (raw < dataType.min || raw > dataType.max) {
+                throw outOfRange(value);
+            }
+        } else {
+            double scaled = (((Number) value).doubleValue() - offset) / scale;
+
+            switch (dataType) {
+                case FLOAT32:
+                    if (Float.isInfinite((float) scaled) && !Double.isInfinite(scaled)) {
+                        throw outOfRange(value);
+                    }
+                    raw = Float.floatToIntBits((float) scaled) & 0xFFFFFFFFL;
+                    break;
+                case FLOAT64:
+                    raw = Double.doubleToLongBits(scaled);
+                    break;
+                default:
+                    // also rejects NaN, and what Math.round would saturate
+                    if (!(scaled >= dataType.min - 0.5 && scaled < dataType.max + 0.5)) {
+                        throw outOfRange(value);
+                    }
+                    raw = Math.round(scaled);
+            }
+        }
+
+        int start = index * width;
+        for (int i = width - 1; i >= 0; i--) {
+            int register = (int) (raw & 0xFFFF);
+            if (byteSwap) {
+                register = swapBytes(register);
+            }
+            registers[start + (wordSwap ? width - 1 - i : i)] = register;
+            raw >>>= 16;
+        }
+    }
+
+    /**
+     * Encodes a single or multiple instances resource value, instances 0..n-1 being mapped to consecutive values.
+     */
+    int[] encode(LwM2mResource value) {
+        if (!value.isMultiInstances()) {
+            int[] registers = new int[width];
+            encode(value.getValue(), registers, 0);
+            return registers;
+        }
+
+        int count = value.getValues().size();
+        int[] registers = new int[count * width];
+        for (Map.Entry<Integer, ?> entry : value.getValues().entrySet()) {
+            int index = entry.getKey();
+            if (index < 0 || index >= count) {
+                throw new IllegalArgumentException("resource instance " + index + " out of range 0.." + (count - 1));
+            }
+            encode(entry.getValue(), registers, index);
+        }
+
+        return registers;
+    }
+
+    //-------internals-------
+    private IllegalArgumentException outOfRange(Object value) {
+        return new IllegalArgumentException(value + " out of range for " + dataType.name().toLowerCase(Locale.ROOT));
+    }
+
+    private long raw(int[] registers, int start) {
+        long raw = 0;
+        for (int i = 0; i < width; i++) {
+            int register = registers[start + (wordSwap ? width - 1 - i : i)];
+            if (byteSwap) {
+                register = swapBytes(register);
+            }
+            raw = raw << 16 | (register & 0xFFFF);
+        }
+        return raw;
+    }
+
+    private long signed(long raw) {
+        switch (dataType) {
+            case INT16:
+                return (short) raw;
+            case INT32:
+                return (int) raw;
+            default:
+                // unsigned types and 64 bit values fit as is (UINT64 above 2^63 wraps, as LWM2M integers are signed)
+                return raw;
+        }
+    }
+
+    private static int swapBytes(int register) {
+        return (register & 0xFF) << 8 | (register >> 8 & 0xFF);
+    }
+}
@@ -0,0 +1,169 @@
+package io.zeelos.leshan.client.modbus;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The bounded request queue of a connection: writes go before reads which go before polls, requests of the same
+ * priority being served in arrival order. Requests still queued after their deadline are failed without reaching the
+ * bus.
+ */
+class RequestQueue<E extends RequestQueue.Entry<?>> {
+
+    private final PriorityBlockingQueue<E> queue = new PriorityBlockingQueue<>();
+    private final int capacity;
+    private final long timeoutNanos;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger depth = new AtomicInteger();
+
+    // metrics
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final LongAdder dequeued = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    /**
+     * @param capacity the maximum number of queued requests
+     * @param timeoutMillis how long a request may wait in the queue
+     */
+    RequestQueue(int capacity, long timeoutMillis) {
+        this.capacity = capacity;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Queues the request, or fails it right away if the queue is full.
+     */
+    void offer(E entry) {
+        if (depth.incrementAndGet() > capacity) {
+            depth.decrementAndGet();
+            rejected.increment();
+            entry.future.completeExceptionally(
+                    new RejectedExecutionException("request queue full (" + capacity + " requests)"));
+            return;
+        }
+        maxDepth.accumulateAndGet(depth.get(), Math::max);
+
+        entry.sequence = sequence.getAndIncrement();
+        entry.enqueued = System.nanoTime();
+        entry.deadline = entry.enqueued + timeoutNanos;
+
+        queue.add(entry);
+    }
+
+    /**
+     * Waits for the next request which did not expire yet.
+     */
+    E take() throws InterruptedException {
+        E entry;
+        do {
+            entry = queue.take();
+        } while (!dequeue(entry));
+
+        return entry;
+    }
+
+    /**
+     * @return the next request which did not expire yet, or null if there is none
+     */
+    E poll() {
+        E entry;
+        do {
+            entry = queue.poll();
+        } while (entry != null && !dequeue(entry));
+
+        return entry;
+    }
+
+    /**
+     * Fails every queued request with the given cause.
+     */
+    void drain(Throwable cause) {
+        E entry;
+        while ((entry = queue.poll()) != null) {
+            depth.decrementAndGet();
+            entry.future.completeExceptionally(cause);
+        }
+    }
+
+    private boolean dequeue(E entry) {
+        depth.decrementAndGet();
+
+        long now = System.nanoTime();
+        if (now > entry.deadline) {
+            expired.increment();
+            entry.future.completeExceptionally(new TimeoutException(
+                    "request expired after " + TimeUnit.NANOSECONDS.toMillis(now - entry.enqueued) + " ms in queue"));
+            return false;
+        }
+
+        long wait = now - entry.enqueued;
+        dequeued.increment();
+        waitNanos.add(wait);
+        maxWaitNanos.accumulateAndGet(wait, Math::max);
+
+        return true;
+    }
+
+    int getDepth() {
+        return depth.get();
+    }
+
+    int getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    double getMeanWaitMillis() {
+        long count = dequeued.sum();
+        return count == 0 ? 0 : waitNanos.sum() / 1e6 / count;
+    }
+
+    double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1e6;
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    long getExpired() {
+        return expired.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("depth:%d, maxDepth:%d, meanWait:%.2fms, maxWait:%.2fms, rejected:%d, expired:%d",
+                getDepth(), getMaxDepth(), getMeanWaitMillis(), getMaxWaitMillis(), getRejected(), getExpired());
+    }
+
+    /**
+     * A queued request and the future completed with its outcome.
+     */
+    static class Entry<T> implements Comparable<Entry<?>> {
+        final ModbusChannel.Priority priority;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        long sequence;
+        long enqueued;
+        long deadline;
+
+        Entry(ModbusChannel.Priority priority) {
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Entry<?> other) {
+            int result = priority.compareTo(other.priority);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+}
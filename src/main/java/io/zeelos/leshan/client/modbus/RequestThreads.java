@@ -0,0 +1,121 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.eclipse.californium.core.CoapServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executor for the CoAP server of the client running each request on a thread of its own: a virtual thread when
+ * the JDK has them (21 and above), else a pooled platform thread.
+ * <p>
+ * A request waiting for a slow device then no longer takes one of the few protocol threads of Californium. The number
+ * of waiting requests stays bounded by the bulkhead of each slave, see {@link ModbusChannel#admit}. Delayed and
+ * periodic tasks (retransmissions, cleanups) are short and run on a scheduler thread.
+ */
+class RequestThreads extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private static final Logger log = LoggerFactory.getLogger(RequestThreads.class);
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    private RequestThreads(ExecutorService executor, ScheduledExecutorService scheduler) {
+        this.executor = executor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Makes the server handle each request on its own thread, to be called before the server is started.
+     */
+    static void install(CoapServer server) {
+        ExecutorService executor;
+        try {
+            // looked up at runtime, the sources target Java 8
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            log.info("Serving LWM2M requests on virtual threads");
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool(daemon("lwm2m-request"));
+            log.info("Serving LWM2M requests on a thread each, virtual threads are not available on this JVM");
+        }
+
+        ScheduledExecutorService timers = Executors.newSingleThreadScheduledExecutor(daemon("lwm2m-timer"));
+        server.setExecutors(new RequestThreads(executor, timers), timers, false);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return scheduler.schedule(command, delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return scheduler.schedule(callable, delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+        return scheduler.scheduleAtFixedRate(command, initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+            TimeUnit unit) {
+        return scheduler.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        scheduler.shutdown();
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> pending = scheduler.shutdownNow();
+        pending.addAll(executor.shutdownNow());
+        return pending;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return executor.isTerminated() && scheduler.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        return scheduler.awaitTermination(timeout, unit)
+                && executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,211 @@
+package io.zeelos.leshan.client.modbus;
+
+import io.zeelos.leshan.client.modbus.utils.ArrayBackedMap;
+import io.zeelos.leshan.client.modbus.utils.Utils;
+import org.eclipse.leshan.core.model.ResourceModel;
+import org.eclipse.leshan.core.node.LwM2mResource;
+import org.eclipse.leshan.core.response.ReadResponse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A resource of a {@link ModbusSensor} compiled at startup: bound to its connection, slave, table, length and
+ * decoding, so that serving it involves neither configuration lookups nor string comparisons.
+ */
+final class ResourceBinding {
+
+    final int id;
+    // position of the resource in the dispatch table of its sensor
+    final int index;
+
+    final ModbusConfig.Resource resource;
+    final ModbusTable table;
+    final ModbusChannel channel;
+    final int slave;
+    final int startAddress;
+    // registers or bits covered by the resource
+    final int length;
+
+    private final RegisterCodec codec;
+    private final Decoder decoder;
+    private final Writer writer;
+
+    ResourceBinding(int id, int index, ModbusConfig.Resource resource, ModbusChannel channel, int slave) {
+        this.id = id;
+        this.index = index;
+        this.resource = resource;
+        this.table = resource.table();
+        this.channel = channel;
+        this.slave = slave;
+        this.startAddress = resource.startAddress;
+        this.length = resource.length();
+
+        // a read of the resource must fit a single request, see ReadPlanner
+        int limit = table.bits ? ReadPlanner.MAX_BITS : ReadPlanner.MAX_REGISTERS;
+        if (length > limit) {
+            throw new IllegalStateException("resource " + id + " spans " + length + " " + table + " addresses, more "
+                    + "than the " + limit + " a read can carry, in modbus configuration file!");
+        }
+
+        this.codec = table.bits ? null : resource.codec();
+        this.decoder = decoder();
+        this.writer = writer();
+    }
+
+    CompletableFuture<Object> read(ModbusChannel.Priority priority) {
+        return channel.read(table, slave, startAddress, length, priority);
+    }
+
+    /**
+     * Decodes raw registers ({@code int[]}) or bits ({@code boolean[]}) into the LWM2M value of the resource.
+     */
+    ReadResponse toResponse(Object value) {
+        return decoder.decode(value);
+    }
+
+    /**
+     * @return the LWM2M type of the values of the resource
+     */
+    ResourceModel.Type type() {
+        return table.bits ? ResourceModel.Type.BOOLEAN : codec.type;
+    }
+
+    boolean isWritable() {
+        return writer != null;
+    }
+
+    /**
+     * Encodes a LWM2M value into the table of the resource.
+     *
+     * @throws IllegalArgumentException if the value does not fit the resource
+     */
+    CompletableFuture<Void> write(LwM2mResource value) {
+        return writer.write(value);
+    }
+
+    /**
+     * Encodes a LWM2M value into the table of the resource, as one of the writes sent together by the bulk.
+     *
+     * @throws IllegalArgumentException if the value does not fit the resource
+     */
+    CompletableFuture<Void> write(LwM2mResource value, WriteCombiner.Bulk bulk) {
+        return table == ModbusTable.COIL ?
+                bulk.writeCoils(channel, slave, startAddress, coils(value)) :
+                bulk.writeRegisters(channel, slave, startAddress, codec.encode(value));
+    }
+
+    /**
+     * @return the value compared against the gt/lt/st attributes, NaN for multiple instances resources
+     */
+    double numericValue(Object value) {
+        if (resource.quantity != 0) {
+            return Double.NaN;
+        }
+        if (value instanceof boolean[]) {
+            return ((boolean[]) value)[0] ? 1 : 0;
+        }
+
+        int[] registers = (int[]) value;
+        switch (codec.type) {
+            case BOOLEAN:
+                return codec.decodeBit(registers, 0) ? 1 : 0;
+            case FLOAT:
+                return codec.decodeDouble(registers, 0);
+            default:
+                return codec.decodeLong(registers, 0);
+        }
+    }
+
+    private Decoder decoder() {
+        int quantity = resource.quantity;
+
+        if (table.bits) {
+            return quantity == 0 ?
+                    value -> ReadResponse.success(id, ((boolean[]) value)[0]) :
+                    value -> ReadResponse.success(id, Utils.asMapBoolean((boolean[]) value),
+                            ResourceModel.Type.BOOLEAN);
+        }
+
+        switch (codec.type) {
+            case BOOLEAN:
+                return quantity == 0 ?
+                        value -> ReadResponse.success(id, codec.decodeBit((int[]) value, 0)) :
+                        value -> ReadResponse.success(id,
+                                Utils.asMapBoolean(codec.decodeBits((int[]) value, quantity)),
+                                ResourceModel.Type.BOOLEAN);
+            case FLOAT:
+                return quantity == 0 ?
+                        value -> ReadResponse.success(id, codec.decodeDouble((int[]) value, 0)) :
+                        value -> ReadResponse.success(id,
+                                ArrayBackedMap.ofDoubles(codec.decodeDoubles((int[]) value, quantity)),
+                                ResourceModel.Type.FLOAT);
+            default:
+                if (quantity == 0) {
+                    return value -> ReadResponse.success(id, codec.decodeLong((int[]) value, 0));
+                }
+
+                return codec == RegisterCodec.RAW ?
+                        value -> ReadResponse.success(id, Utils.asMapInteger((int[]) value),
+                                ResourceModel.Type.INTEGER) :
+                        value -> ReadResponse.success(id,
+                                ArrayBackedMap.ofLongs(codec.decodeLongs((int[]) value, quantity)),
+                                ResourceModel.Type.INTEGER);
+        }
+    }
+
+    private Writer writer() {
+        WriteCombiner combiner = channel.getCombiner();
+
+        switch (table) {
+            case HOLDING_REGISTER:
+                if (combiner != null) {
+                    return value -> combiner.writeRegisters(slave, startAddress, codec.encode(value));
+                }
+
+                return value -> {
+                    int[] registers = codec.encode(value);
+                    if (registers.length > WriteCombiner.MAX_REGISTERS) {
+                        throw new IllegalArgumentException("write of " + registers.length + " registers exceeds the "
+                                + WriteCombiner.MAX_REGISTERS + " a request can carry");
+                    }
+
+                    return registers.length == 1 && !value.isMultiInstances() ?
+                            channel.writeRegister(slave, startAddress, registers[0]) :
+                            channel.writeRegisters(slave, startAddress, registers);
+                };
+            case COIL:
+                if (combiner != null) {
+                    return value -> combiner.writeCoils(slave, startAddress, coils(value));
+                }
+
+                return value -> {
+                    boolean[] coils = coils(value);
+                    if (coils.length > WriteCombiner.MAX_COILS) {
+                        throw new IllegalArgumentException("write of " + coils.length + " coils exceeds the "
+                                + WriteCombiner.MAX_COILS + " a request can carry");
+                    }
+
+                    return value.isMultiInstances() ?
+                            channel.writeCoils(slave, startAddress, coils) :
+                            channel.writeCoil(slave, startAddress, coils[0]);
+                };
+            default:
+                // input registers and discrete inputs are read-only
+                return null;
+        }
+    }
+
+    private static boolean[] coils(LwM2mResource value) {
+        return value.isMultiInstances() ?
+                Utils.asArrBoolean(value.getValues()) :
+                new boolean[] { Utils.asBoolean(value.getValue()) };
+    }
+
+    private interface Decoder {
+        ReadResponse decode(Object value);
+    }
+
+    private interface Writer {
+        CompletableFuture<Void> write(LwM2mResource value);
+    }
+}
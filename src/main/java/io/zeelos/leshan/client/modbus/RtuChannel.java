@@ -0,0 +1,558 @@
+package io.zeelos.leshan.client.modbus;
+
+import com.intelligt.modbus.jlibmodbus.exception.ModbusIOException;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A Modbus RTU master exchanging frames on a serial line it drives itself, or on a TCP connection to a serial gateway
+ * forwarding them as they are (RTU over TCP).
+ * <p>
+ * Frame timing is derived from the line speed rather than from the conservative defaults of jlibmodbus:
+ * <ul>
+ * <li>a request is sent as soon as the line has been silent for t3.5 (plus the configured turnaround delay);</li>
+ * <li>a response ends as soon as its expected length is received, without waiting for the trailing silence, only
+ * frames which length cannot be known (or garbage) being ended by silence;</li>
+ * <li>the response timeout only bounds the wait for the first byte, the rest of the frame having to follow at the
+ * speed of the line.</li>
+ * </ul>
+ * Like {@link MasterChannel}, a dispatcher thread owns the line and runs one request at a time.
+ */
+class RtuChannel extends ModbusChannel {
+
+    private static final Logger log = LoggerFactory.getLogger(RtuChannel.class);
+
+    // added to the silences detected on a serial line, as USB adapters deliver bytes in bursts
+    private static final long RECEIVE_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    // shortest wait between two looks at a serial port, below what the scheduler honours
+    private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // wait between two looks at a serial port until a response starts, a slave hardly answers sooner
+    private static final long FIRST_BYTE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Line line;
+    private final long charNanos;
+    private final long interCharNanos;
+    private final long interFrameNanos;
+    private final long turnaroundNanos;
+    private final long receiveSlackNanos;
+    private final long responseTimeoutNanos;
+
+    private final RequestQueue<Request> queue;
+    private final Thread dispatcher;
+    private final byte[] response = new byte[RtuFrame.MAX_LENGTH];
+
+    // only accessed from the dispatcher thread
+    private boolean open;
+    private long lastActivity;
+
+    private volatile boolean running;
+
+    private RtuChannel(String name, int slave, Line line, BusTime busTime, long charNanos, long interCharNanos,
+            long interFrameNanos, long turnaroundNanos, long receiveSlackNanos, int responseTimeout, int queueCapacity,
+            long queueTimeout) {
+        super(name, slave, busTime);
+        this.line = line;
+        this.charNanos = charNanos;
+        this.interCharNanos = interCharNanos;
+        this.interFrameNanos = interFrameNanos;
+        this.turnaroundNanos = turnaroundNanos;
+        this.receiveSlackNanos = receiveSlackNanos;
+        this.responseTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(responseTimeout);
+
+        this.queue = new RequestQueue<>(queueCapacity, queueTimeout);
+        this.dispatcher = new Thread(this::dispatch, "modbus-" + name);
+        this.dispatcher.setDaemon(true);
+    }
+
+    static RtuChannel serial(String name, int slave, ModbusConfig.SerialSettings settings, int responseTimeout,
+            int queueCapacity, long queueTimeout) {
+        long charNanos = (long) BusTime.nanosPerChar(settings.baudRate,
+                settings.dataBits == 0 ? 8 : settings.dataBits, settings.stopBits == 0 ? 1 : settings.stopBits,
+                settings.parity);
+        long interCharNanos = settings.interCharMicros > 0 ?
+                TimeUnit.MICROSECONDS.toNanos(settings.interCharMicros) :
+                charNanos * 3 / 2;
+        long interFrameNanos = settings.interFrameMicros > 0 ?
+                TimeUnit.MICROSECONDS.toNanos(settings.interFrameMicros) :
+                charNanos * 7 / 2;
+
+        return new RtuChannel(name, slave, new SerialLine(settings, Math.max(MIN_PARK_NANOS, charNanos)),
+                BusTime.rtu(settings.baudRate, settings.dataBits, settings.stopBits, settings.parity), charNanos,
+                interCharNanos, interFrameNanos, TimeUnit.MICROSECONDS.toNanos(settings.turnaroundMicros),
+                RECEIVE_SLACK_NANOS, responseTimeout, queueCapacity, queueTimeout);
+    }
+
+    /**
+     * A channel to a serial gateway forwarding RTU frames as they are: the gateway handles the serial timing, frames
+     * only being delimited by their length.
+     */
+    static RtuChannel tcp(String name, int slave, InetSocketAddress address, boolean keepAlive, int responseTimeout,
+            int queueCapacity, long queueTimeout) {
+        return new RtuChannel(name, slave, new SocketLine(address, keepAlive, responseTimeout), BusTime.tcp(1), 0, 0,
+                0, 0, TimeUnit.MILLISECONDS.toNanos(responseTimeout), responseTimeout, queueCapacity, queueTimeout);
+    }
+
+    @Override
+    void start() {
+        try {
+            open();
+        } catch (IOException e) {
+            // the dispatcher keeps trying
+            down(e);
+        }
+
+        running = true;
+        dispatcher.start();
+
+        if (charNanos > 0) {
+            log.info("t1.5: {} µs, t3.5: {} µs, turnaround: {} µs on '{}'", interCharNanos / 1000,
+                    interFrameNanos / 1000, turnaroundNanos / 1000, getName());
+        }
+    }
+
+    @Override
+    void stop() {
+        super.stop();
+        running = false;
+        dispatcher.interrupt();
+        queue.drain(new ModbusIOException("connection '" + getName() + "' is closed"));
+    }
+
+    @Override
+    RequestQueue<?> getQueue() {
+        return queue;
+    }
+
+    @Override
+    CompletableFuture<Object> read(ModbusTable table, int slave, int startAddress, int quantity, Priority priority) {
+        return submit(priority, slave, ModbusPdu.read(table.readFunction, startAddress, quantity),
+                BusTime.readResponse(table, quantity));
+    }
+
+    @Override
+    CompletableFuture<Void> writeRegister(int slave, int address, int value) {
+        return submit(Priority.WRITE, slave, ModbusPdu.writeSingleRegister(address, value), BusTime.WRITE_RESPONSE)
+                .thenApply(r -> null);
+    }
+
+    @Override
+    CompletableFuture<Void> writeRegisters(int slave, int startAddress, int[] values) {
+        return submit(Priority.WRITE, slave, ModbusPdu.writeMultipleRegisters(startAddress, values),
+                BusTime.WRITE_RESPONSE).thenApply(r -> null);
+    }
+
+    @Override
+    CompletableFuture<Void> writeCoil(int slave, int address, boolean value) {
+        return submit(Priority.WRITE, slave, ModbusPdu.writeSingleCoil(address, value), BusTime.WRITE_RESPONSE)
+                .thenApply(r -> null);
+    }
+
+    @Override
+    CompletableFuture<Void> writeCoils(int slave, int startAddress, boolean[] values) {
+        return submit(Priority.WRITE, slave, ModbusPdu.writeMultipleCoils(startAddress, values),
+                BusTime.WRITE_RESPONSE).thenApply(r -> null);
+    }
+
+    private CompletableFuture<Object> submit(Priority priority, int slave, byte[] pdu, int responsePdu) {
+        Request request = new Request(priority, slave, pdu, responsePdu);
+
+        if (!admit(slave, priority, request.future)) {
+            return request.future;
+        }
+        if (!running) {
+            request.future.completeExceptionally(new ModbusIOException("connection '" + getName() + "' is closed"));
+        } else if (!isAvailable()) {
+            request.future.completeExceptionally(unavailable());
+        } else {
+            queue.offer(request);
+            if (!running) {
+                // closed in the meantime, after the queue was drained
+                queue.drain(new ModbusIOException("connection '" + getName() + "' is closed"));
+            }
+        }
+
+        return request.future;
+    }
+
+    //-------Dispatcher thread-------
+    private void dispatch() {
+        try {
+            while (running) {
+                if (!isAvailable()) {
+                    reconnect();
+                    continue;
+                }
+
+                Request request = queue.take();
+
+                long start = System.nanoTime();
+                Throwable failure = request.run();
+                getBusTime().record(System.nanoTime() - start,
+                        getBusTime().model(request.pdu.length, request.responsePdu));
+
+                if (onCompletion(failure)) {
+                    queue.drain(unavailable());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    private void open() throws IOException {
+        line.open();
+        open = true;
+        lastActivity = System.nanoTime();
+    }
+
+    private void close() {
+        if (open) {
+            line.close();
+            open = false;
+        }
+    }
+
+    private void reconnect() throws InterruptedException {
+        queue.drain(unavailable());
+
+        for (int attempt = 0; running; attempt++) {
+            Thread.sleep(reconnectDelay(attempt));
+
+            close();
+            try {
+                open();
+                reconnected();
+                return;
+            } catch (IOException e) {
+                log.debug("unable to reconnect '{}'", getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Sends a request and reads its response.
+     *
+     * @return the decoded response PDU, see {@link ModbusPdu#decode}
+     */
+    private Object transact(Request request) throws Exception {
+        // the line must have been silent for t3.5 since the previous frame
+        parkUntil(lastActivity + interFrameNanos + turnaroundNanos);
+
+        // anything received since is a late or spurious frame
+        line.purge();
+
+        byte[] adu = RtuFrame.encode(request.slave, request.pdu);
+        line.write(adu);
+        // when the last character left the port
+        long sent = System.nanoTime() + adu.length * charNanos;
+
+        if (request.slave == 0) {
+            // broadcast, no response
+            lastActivity = sent;
+            return null;
+        }
+
+        int length = receive(sent);
+
+        ByteBuffer pdu = RtuFrame.pdu(request.slave, response, length);
+        if (pdu == null) {
+            throw new ModbusIOException("invalid response frame from slave " + request.slave + " (" + length
+                    + " bytes)");
+        }
+
+        return ModbusPdu.decode(request.pdu, pdu);
+    }
+
+    /**
+     * Reads a response frame, ending it as soon as its expected length is received.
+     *
+     * @return the length of the frame
+     */
+    private int receive(long sent) throws Exception {
+        long deadline = sent + responseTimeoutNanos;
+        int received = 0;
+        int expected = -1;
+
+        while (true) {
+            long now = System.nanoTime();
+            long silence = lastActivity + interFrameNanos + receiveSlackNanos;
+
+            if (received > 0 && expected < 0 && now > silence) {
+                // a frame which length is not known, ended by silence
+                return received;
+            }
+            if (now > deadline) {
+                String message = received == 0 ?
+                        "no response within " + TimeUnit.NANOSECONDS.toMillis(responseTimeoutNanos) + " ms" :
+                        "incomplete response (" + received + " of " + expected + " bytes)";
+                throw new ModbusIOException(message, new SocketTimeoutException(message));
+            }
+
+            if (expected > received) {
+                // the rest of the frame cannot arrive sooner
+                parkUntil(Math.min(deadline, lastActivity + (expected - received) * charNanos));
+            }
+
+            long until = received > 0 && expected < 0 ? Math.min(deadline, silence) : deadline;
+            int read = line.read(response, received, response.length - received, until - System.nanoTime());
+            if (read == 0) {
+                continue;
+            }
+
+            now = System.nanoTime();
+            if (received == 0) {
+                // the rest of the frame must follow at the speed of the line
+                deadline = now + RtuFrame.MAX_LENGTH * (charNanos + interCharNanos) + receiveSlackNanos;
+            }
+            received += read;
+            lastActivity = now;
+
+            expected = RtuFrame.responseLength(response, received);
+            if ((expected > 0 && received >= expected) || received == response.length) {
+                return expected > 0 ? expected : received;
+            }
+            if (expected > 0) {
+                deadline = Math.min(deadline, now + (expected - received) * charNanos + receiveSlackNanos);
+            }
+        }
+    }
+
+    private static void parkUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    private class Request extends RequestQueue.Entry<Object> {
+        final int slave;
+        final byte[] pdu;
+        final int responsePdu;
+
+        Request(Priority priority, int slave, byte[] pdu, int responsePdu) {
+            super(priority);
+            this.slave = slave;
+            this.pdu = pdu;
+            this.responsePdu = responsePdu;
+        }
+
+        /**
+         * @return the failure of the request, null if it succeeded
+         */
+        Throwable run() {
+            try {
+                future.complete(transact(this));
+                return null;
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+                return t;
+            }
+        }
+    }
+
+    /**
+     * The link the frames are exchanged on, only used by the dispatcher thread.
+     */
+    interface Line {
+        void open() throws IOException;
+
+        void close();
+
+        void write(byte[] adu) throws IOException;
+
+        /**
+         * Reads what was received, waiting at most the given time for something: the start of a frame when the
+         * offset is 0.
+         *
+         * @return the number of bytes read, 0 if none were received in time
+         */
+        int read(byte[] buffer, int offset, int length, long timeoutNanos) throws IOException, InterruptedException;
+
+        /**
+         * Discards what was received and not read yet.
+         */
+        void purge() throws IOException;
+    }
+
+    private static class SerialLine implements Line {
+        private final ModbusConfig.SerialSettings settings;
+        private final long pollNanos;
+
+        private SerialPort port;
+
+        SerialLine(ModbusConfig.SerialSettings settings, long pollNanos) {
+            this.settings = settings;
+            this.pollNanos = pollNanos;
+        }
+
+        @Override
+        public void open() throws IOException {
+            SerialPort serial = new SerialPort(settings.deviceName);
+            try {
+                serial.openPort();
+                try {
+                    serial.setParams(settings.baudRate, settings.dataBits == 0 ? 8 : settings.dataBits,
+                            settings.stopBits == 0 ? 1 : settings.stopBits, settings.parity);
+                    serial.purgePort(SerialPort.PURGE_RXCLEAR | SerialPort.PURGE_TXCLEAR);
+                } catch (SerialPortException e) {
+                    serial.closePort();
+                    throw e;
+                }
+            } catch (SerialPortException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+
+            port = serial;
+        }
+
+        @Override
+        public void close() {
+            try {
+                port.closePort();
+            } catch (SerialPortException e) {
+                log.debug("unable to close '{}'", settings.deviceName, e);
+            }
+        }
+
+        @Override
+        public void write(byte[] adu) throws IOException {
+            try {
+                if (!port.writeBytes(adu)) {
+                    throw new IOException("unable to write to '" + settings.deviceName + "'");
+                }
+            } catch (SerialPortException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Polls the port coarsely until a frame starts (at offset 0), and once per character within the frame.
+         */
+        @Override
+        public int read(byte[] buffer, int offset, int length, long timeoutNanos)
+                throws IOException, InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            long parkNanos = offset == 0 ? Math.max(FIRST_BYTE_PARK_NANOS, pollNanos) : pollNanos;
+            try {
+                int available;
+                while ((available = port.getInputBufferBytesCount()) <= 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return 0;
+                    }
+                    parkUntil(System.nanoTime() + Math.min(remaining, parkNanos));
+                }
+
+                byte[] bytes = port.readBytes(Math.min(available, length));
+                System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+                return bytes.length;
+            } catch (SerialPortException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void purge() throws IOException {
+            try {
+                if (port.getInputBufferBytesCount() > 0) {
+                    port.purgePort(SerialPort.PURGE_RXCLEAR);
+                }
+            } catch (SerialPortException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static class SocketLine implements Line {
+        private final InetSocketAddress address;
+        private final boolean keepAlive;
+        private final int connectTimeout;
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+
+        SocketLine(InetSocketAddress address, boolean keepAlive, int connectTimeout) {
+            this.address = address;
+            this.keepAlive = keepAlive;
+            this.connectTimeout = connectTimeout;
+        }
+
+        @Override
+        public void open() throws IOException {
+            Socket s = new Socket();
+            try {
+                s.connect(address, connectTimeout);
+                s.setTcpNoDelay(true);
+                s.setKeepAlive(keepAlive);
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+
+            socket = s;
+            in = s.getInputStream();
+            out = s.getOutputStream();
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("unable to close the connection to {}", address, e);
+            }
+        }
+
+        @Override
+        public void write(byte[] adu) throws IOException {
+            out.write(adu);
+            out.flush();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length, long timeoutNanos) throws IOException {
+            if (timeoutNanos <= 0) {
+                return 0;
+            }
+
+            // 0 would mean forever
+            socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos)));
+            try {
+                int read = in.read(buffer, offset, length);
+                if (read < 0) {
+                    throw new IOException("connection closed by " + address);
+                }
+                return read;
+            } catch (SocketTimeoutException e) {
+                return 0;
+            }
+        }
+
+        @Override
+        public void purge() throws IOException {
+            int available;
+            while ((available = in.available()) > 0) {
+                in.skip(available);
+            }
+        }
+    }
+}
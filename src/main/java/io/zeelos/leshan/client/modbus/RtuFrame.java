@@ -0,0 +1,104 @@
+package io.zeelos.leshan.client.modbus;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Framing of Modbus RTU ADUs: slave address, PDU and CRC-16 (low byte first), for the transports which do not go
+ * through jlibmodbus.
+ */
+final class RtuFrame {
+
+    // slave address and CRC around the PDU
+    static final int OVERHEAD = 3;
+    static final int MAX_LENGTH = 256;
+
+    // an exception response: slave, function | 0x80, code, CRC
+    private static final int EXCEPTION_LENGTH = 5;
+    // a write response: slave, function, address, quantity or value, CRC
+    private static final int WRITE_RESPONSE_LENGTH = 8;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+            }
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private RtuFrame() {
+    }
+
+    static byte[] encode(int slave, byte[] pdu) {
+        byte[] adu = new byte[pdu.length + OVERHEAD];
+        adu[0] = (byte) slave;
+        System.arraycopy(pdu, 0, adu, 1, pdu.length);
+
+        int crc = crc(adu, 0, pdu.length + 1);
+        adu[adu.length - 2] = (byte) crc;
+        adu[adu.length - 1] = (byte) (crc >>> 8);
+
+        return adu;
+    }
+
+    static int crc(byte[] bytes, int offset, int length) {
+        int crc = 0xFFFF;
+        for (int i = offset; i < offset + length; i++) {
+            crc = (crc >>> 8) ^ CRC_TABLE[(crc ^ bytes[i]) & 0xFF];
+        }
+
+        return crc;
+    }
+
+    /**
+     * @return the length of the response ADU which starts with the given bytes, -1 if not known yet or if the
+     *         function is not one this bridge sends
+     */
+    static int responseLength(byte[] adu, int received) {
+        if (received < 2) {
+            return -1;
+        }
+
+        int function = adu[1] & 0xFF;
+        if ((function & 0x80) != 0) {
+            return EXCEPTION_LENGTH;
+        }
+
+        switch (function) {
+            case ModbusPdu.READ_COILS:
+            case ModbusPdu.READ_DISCRETE_INPUTS:
+            case ModbusPdu.READ_HOLDING_REGISTERS:
+            case ModbusPdu.READ_INPUT_REGISTERS:
+                // slave, function, byte count, data, CRC
+                return received < 3 ? -1 : OVERHEAD + 2 + (adu[2] & 0xFF);
+            case ModbusPdu.WRITE_SINGLE_COIL:
+            case ModbusPdu.WRITE_SINGLE_REGISTER:
+            case ModbusPdu.WRITE_MULTIPLE_COILS:
+            case ModbusPdu.WRITE_MULTIPLE_REGISTERS:
+                return WRITE_RESPONSE_LENGTH;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Checks the address and CRC of a received ADU.
+     *
+     * @return its PDU, or null if the frame is not a valid one from the given slave
+     */
+    static ByteBuffer pdu(int slave, byte[] adu, int length) {
+        if (length < OVERHEAD + 1 || (adu[0] & 0xFF) != slave) {
+            return null;
+        }
+
+        int crc = (adu[length - 2] & 0xFF) | (adu[length - 1] & 0xFF) << 8;
+        if (crc != crc(adu, 0, length - 2)) {
+            return null;
+        }
+
+        return ByteBuffer.wrap(adu, 1, length - OVERHEAD);
+    }
+}
@@ -0,0 +1,245 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk ring buffers of timestamped samples, one per polled single instance resource, kept in a memory-mapped file
+ * so that samples survive restarts until they are uploaded.
+ * <p>
+ * When a ring is full the oldest samples are overwritten. Samples stay pending until {@link #commit(Batch)
+ * committed}, once uploaded.
+ */
+class SampleBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(SampleBuffer.class);
+
+    // file layout: magic, samples per ring, ring count, then each ring
+    private static final int MAGIC = 0x53414D31;
+    private static final int HEADER_LENGTH = 12;
+    // ring layout: resource key, samples written, samples committed, then the samples (time in ms, value)
+    private static final int RING_HEADER_LENGTH = 24;
+    private static final int SAMPLE_LENGTH = 16;
+
+    private final Path file;
+    private final int samplesPerRing;
+
+    private MappedByteBuffer buffer;
+    private final Map<Long, Ring> rings = new LinkedHashMap<>();
+    private int next;
+
+    SampleBuffer(String file, int samplesPerRing) {
+        this.file = Paths.get(file);
+        this.samplesPerRing = Math.max(1, samplesPerRing);
+    }
+
+    /**
+     * Lays out a ring for each polled single instance resource, keeping the pending samples left in the file by a
+     * previous run for the resources which are still configured.
+     */
+    void open(Collection<ModbusSensor> sensors) throws IOException {
+        Map<Long, ResourceBinding> resources = new LinkedHashMap<>();
+        for (ModbusSensor sensor : sensors) {
+            for (ResourceBinding binding : sensor.getBindings()) {
+                if (binding.resource.pollMillis > 0 && binding.resource.quantity == 0) {
+                    resources.put(sensor.key(binding), binding);
+                }
+            }
+        }
+
+        Map<Long, List<long[]>> pending = readPending();
+
+        long length = HEADER_LENGTH + (long) resources.size() * (RING_HEADER_LENGTH + samplesPerRing * SAMPLE_LENGTH);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+        buffer.putInt(0, MAGIC).putInt(4, samplesPerRing).putInt(8, resources.size());
+
+        int offset = HEADER_LENGTH;
+        int restored = 0;
+        for (Map.Entry<Long, ResourceBinding> resource : resources.entrySet()) {
+            Ring ring = new Ring(resource.getKey(), resource.getValue(), offset);
+            buffer.putLong(offset, ring.key);
+            rings.put(ring.key, ring);
+
+            for (long[] sample : pending.getOrDefault(ring.key, new ArrayList<>())) {
+                ring.add(sample[0], Double.longBitsToDouble(sample[1]));
+                restored++;
+            }
+
+            offset += RING_HEADER_LENGTH + samplesPerRing * SAMPLE_LENGTH;
+        }
+        buffer.force();
+
+        log.info("Buffering the samples of {} resources in {}, {} pending from the previous run", rings.size(), file,
+                restored);
+    }
+
+    void record(long key, long timestamp, double value) {
+        Ring ring = rings.get(key);
+        if (ring != null && !Double.isNaN(value)) {
+            ring.add(timestamp, value);
+        }
+    }
+
+    /**
+     * @return up to max pending samples, taken from each ring in turn, oldest first
+     */
+    Batch peek(int max) {
+        Batch batch = new Batch();
+
+        List<Ring> all = new ArrayList<>(rings.values());
+        if (all.isEmpty()) {
+            return batch;
+        }
+
+        // rotate the starting ring so that a chatty resource does not starve the others
+        int start = next++ % all.size();
+        int share = Math.max(1, max / all.size());
+        for (int pass = 0; pass < 2 && batch.size() < max; pass++) {
+            for (int i = 0; i < all.size() && batch.size() < max; i++) {
+                all.get((start + i) % all.size()).peek(batch, pass == 0 ? share : max - batch.size());
+            }
+        }
+
+        return batch;
+    }
+
+    void commit(Batch batch) {
+        batch.samples.forEach(Ring::commit);
+    }
+
+    void close() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    private Map<Long, List<long[]>> readPending() {
+        Map<Long, List<long[]>> pending = new HashMap<>();
+        if (!Files.isRegularFile(file)) {
+            return pending;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer old = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (old.capacity() < HEADER_LENGTH || old.getInt(0) != MAGIC) {
+                log.warn("ignoring {}, not a sample buffer", file);
+                return pending;
+            }
+
+            int slots = old.getInt(4);
+            int count = old.getInt(8);
+            int offset = HEADER_LENGTH;
+            for (int i = 0; i < count && offset + RING_HEADER_LENGTH <= old.capacity(); i++) {
+                long key = old.getLong(offset);
+                long head = old.getLong(offset + 8);
+                long tail = Math.max(old.getLong(offset + 16), head - slots);
+
+                List<long[]> samples = new ArrayList<>();
+                for (long n = tail; n < head; n++) {
+                    int position = offset + RING_HEADER_LENGTH + (int) (n % slots) * SAMPLE_LENGTH;
+                    samples.add(new long[] { old.getLong(position), old.getLong(position + 8) });
+                }
+                pending.put(key, samples);
+
+                offset += RING_HEADER_LENGTH + slots * SAMPLE_LENGTH;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("unable to read the pending samples of {}", file, e);
+        }
+
+        return pending;
+    }
+
+    /**
+     * Pending samples of several rings, in upload order.
+     */
+    static class Batch {
+        final Map<Ring, List<Sample>> samples = new LinkedHashMap<>();
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        private void add(Ring ring, Sample sample) {
+            samples.computeIfAbsent(ring, k -> new ArrayList<>()).add(sample);
+            size++;
+        }
+    }
+
+    static class Sample {
+        final long sequence;
+        final long timestamp;
+        final double value;
+
+        Sample(long sequence, long timestamp, double value) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.value = value;
+        }
+    }
+
+    class Ring {
+        final long key;
+        final ResourceBinding binding;
+        private final int offset;
+
+        Ring(long key, ResourceBinding binding, int offset) {
+            this.key = key;
+            this.binding = binding;
+            this.offset = offset;
+        }
+
+        synchronized void add(long timestamp, double value) {
+            long head = buffer.getLong(offset + 8);
+
+            int position = offset + RING_HEADER_LENGTH + (int) (head % samplesPerRing) * SAMPLE_LENGTH;
+            buffer.putLong(position, timestamp).putDouble(position + 8, value);
+            buffer.putLong(offset + 8, head + 1);
+
+            // overwrite the oldest sample when full
+            if (head + 1 - buffer.getLong(offset + 16) > samplesPerRing) {
+                buffer.putLong(offset + 16, head + 1 - samplesPerRing);
+            }
+        }
+
+        private synchronized void peek(Batch batch, int max) {
+            long head = buffer.getLong(offset + 8);
+            long from = buffer.getLong(offset + 16);
+
+            List<Sample> taken = batch.samples.get(this);
+            if (taken != null) {
+                from = taken.get(taken.size() - 1).sequence + 1;
+            }
+
+            for (long n = from; n < head && max-- > 0; n++) {
+                int position = offset + RING_HEADER_LENGTH + (int) (n % samplesPerRing) * SAMPLE_LENGTH;
+                batch.add(this, new Sample(n, buffer.getLong(position), buffer.getDouble(position + 8)));
+            }
+        }
+
+        private synchronized void commit(List<Sample> samples) {
+            long tail = samples.get(samples.size() - 1).sequence + 1;
+            if (tail > buffer.getLong(offset + 16)) {
+                buffer.putLong(offset + 16, tail);
+            }
+        }
+    }
+}
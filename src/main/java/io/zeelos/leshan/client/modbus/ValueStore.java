@@ -0,0 +1,246 @@
+package io.zeelos.leshan.client.modbus;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Bounded store of the last value read from the devices for each object/instance/resource, with the time it was read
+ * and where it comes from.
+ * <p>
+ * Sensors fall back on it when a device cannot be read, and polled resources are answered from it until their first
+ * poll, as long as the value is not older than {@code maxAgeMillis}. The store can be snapshotted to a memory-mapped
+ * file, reloaded on startup so that a restarted client serves values right away.
+ */
+class ValueStore {
+
+    private static final Logger log = LoggerFactory.getLogger(ValueStore.class);
+
+    // snapshot layout: magic, entry count, CRC32 of the entries, then the entries
+    private static final int MAGIC = 0x4C4B5631;
+    private static final int HEADER_LENGTH = 16;
+    private static final byte REGISTERS = 0;
+    private static final byte BITS = 1;
+
+    enum Quality {
+        // read from the device by this process
+        GOOD,
+        // reloaded from the snapshot of a previous run
+        RESTORED
+    }
+
+    static final class Entry {
+        // int[] of registers or boolean[] of bits
+        final Object value;
+        final long timestamp;
+        final Quality quality;
+
+        Entry(Object value, long timestamp, Quality quality) {
+            this.value = value;
+            this.timestamp = timestamp;
+            this.quality = quality;
+        }
+    }
+
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final Path snapshot;
+    private final long snapshotMillis;
+
+    private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean full;
+
+    private ScheduledExecutorService scheduler;
+
+    ValueStore(int capacity, long maxAgeMillis, String snapshot, long snapshotMillis) {
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+        this.snapshot = snapshot != null ? Paths.get(snapshot) : null;
+        this.snapshotMillis = snapshotMillis;
+    }
+
+    static ValueStore of(ModbusConfig.ValueStoreSettings settings) {
+        return settings == null ?
+                null :
+                new ValueStore(settings.capacity, settings.maxAgeMillis, settings.snapshot, settings.snapshotMillis);
+    }
+
+    /**
+     * @return the key of a resource, from its object, instance and resource ids
+     */
+    static long key(int objectId, int instanceId, int resourceId) {
+        return ((long) objectId << 32) | ((long) (instanceId & 0xFFFF) << 16) | (resourceId & 0xFFFF);
+    }
+
+    void put(long key, Object value) {
+        if (entries.size() >= capacity && !entries.containsKey(key)) {
+            if (!full) {
+                full = true;
+                log.warn("last known value store is full ({} values), new resources are not kept", capacity);
+            }
+            return;
+        }
+
+        entries.put(key, new Entry(value, System.currentTimeMillis(), Quality.GOOD));
+    }
+
+    void remove(long key) {
+        entries.remove(key);
+    }
+
+    /**
+     * @return the last value of a resource, null if unknown or older than the max age
+     */
+    Entry get(long key) {
+        Entry entry = entries.get(key);
+
+        return entry != null && System.currentTimeMillis() - entry.timestamp <= maxAgeMillis ? entry : null;
+    }
+
+    /**
+     * Reloads the snapshot of a previous run, if any, and snapshots the store every {@code snapshotMillis}.
+     */
+    void start() {
+        if (snapshot == null) {
+            return;
+        }
+
+        try {
+            load();
+        } catch (IOException | RuntimeException e) {
+            log.warn("unable to reload last known values from {}", snapshot, e);
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "modbus-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::snapshot, snapshotMillis, snapshotMillis, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            snapshot();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.isRegularFile(snapshot)) {
+            return;
+        }
+
+        try (FileChannel file = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                log.warn("ignoring {}, not a last known values snapshot", snapshot);
+                return;
+            }
+            int count = buffer.getInt();
+            long crc = buffer.getLong();
+
+            ByteBuffer body = buffer.slice();
+            CRC32 checksum = new CRC32();
+            checksum.update(body.duplicate());
+            if (checksum.getValue() != crc) {
+                log.warn("ignoring {}, the snapshot is corrupted", snapshot);
+                return;
+            }
+
+            for (int i = 0; i < count && entries.size() < capacity; i++) {
+                long key = body.getLong();
+                long timestamp = body.getLong();
+                byte kind = body.get();
+                int length = body.getShort() & 0xFFFF;
+
+                Object value;
+                if (kind == BITS) {
+                    boolean[] bits = new boolean[length];
+                    for (int j = 0; j < length; j++) {
+                        bits[j] = body.get() != 0;
+                    }
+                    value = bits;
+                } else {
+                    int[] registers = new int[length];
+                    for (int j = 0; j < length; j++) {
+                        registers[j] = body.getShort() & 0xFFFF;
+                    }
+                    value = registers;
+                }
+
+                entries.putIfAbsent(key, new Entry(value, timestamp, Quality.RESTORED));
+            }
+
+            log.info("Reloaded {} last known values from {}", count, snapshot);
+        }
+    }
+
+    private void snapshot() {
+        try {
+            // copy first, the entries keep changing
+            Map<Long, Entry> copy = new HashMap<>(entries);
+
+            long length = HEADER_LENGTH;
+            for (Entry entry : copy.values()) {
+                length += 19 + (entry.value instanceof boolean[] ?
+                        ((boolean[]) entry.value).length :
+                        ((int[]) entry.value).length * 2);
+            }
+
+            Path temporary = snapshot.resolveSibling(snapshot.getFileName() + ".tmp");
+            try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                MappedByteBuffer buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, length);
+
+                buffer.position(HEADER_LENGTH);
+                copy.forEach((key, entry) -> {
+                    buffer.putLong(key).putLong(entry.timestamp);
+                    if (entry.value instanceof boolean[]) {
+                        boolean[] bits = (boolean[]) entry.value;
+                        buffer.put(BITS).putShort((short) bits.length);
+                        for (boolean bit : bits) {
+                            buffer.put((byte) (bit ? 1 : 0));
+                        }
+                    } else {
+                        int[] registers = (int[]) entry.value;
+                        buffer.put(REGISTERS).putShort((short) registers.length);
+                        for (int register : registers) {
+                            buffer.putShort((short) register);
+                        }
+                    }
+                });
+
+                ByteBuffer body = buffer.duplicate();
+                body.position(HEADER_LENGTH);
+                CRC32 checksum = new CRC32();
+                checksum.update(body);
+
+                buffer.putInt(0, MAGIC).putInt(4, copy.size()).putLong(8, checksum.getValue());
+                buffer.force();
+            }
+
+            // a crash while snapshotting leaves the previous snapshot intact
+            Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            log.warn("unable to snapshot last known values to {}", snapshot, e);
+        }
+    }
+}
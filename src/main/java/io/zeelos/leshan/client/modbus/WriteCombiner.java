@@ -0,0 +1,266 @@
+package io.zeelos.leshan.client.modbus;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the holding register and coil writes of a connection for a short window, then sends the writes to contiguous
+ * addresses of a slave as a single function 16 (or 15) request.
+ * <p>
+ * The last write to an address wins, and a write is never split across two requests: writes which would not fit a
+ * request are rejected. Each write completes once the request carrying it is answered.
+ */
+class WriteCombiner {
+
+    // PDU limits of function codes 0x0F and 0x10
+    static final int MAX_COILS = 1968;
+    static final int MAX_REGISTERS = 123;
+
+    // only triggers the flushes, the bus access itself happens on the connection workers
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "modbus-writes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ModbusChannel channel;
+    private final long windowMillis;
+
+    // writes waiting for the end of their window, by slave and table
+    private final Map<Long, Batch> batches = new HashMap<>();
+
+    WriteCombiner(ModbusChannel channel, long windowMillis) {
+        this.channel = channel;
+        this.windowMillis = windowMillis;
+    }
+
+    CompletableFuture<Void> writeRegisters(int slave, int startAddress, int[] values) {
+        int[] copy = values.clone();
+
+        return add(slave, ModbusTable.HOLDING_REGISTER, startAddress, copy.length, i -> copy[i]);
+    }
+
+    CompletableFuture<Void> writeCoils(int slave, int startAddress, boolean[] values) {
+        boolean[] copy = values.clone();
+
+        return add(slave, ModbusTable.COIL, startAddress, copy.length, i -> copy[i] ? 1 : 0);
+    }
+
+    private synchronized CompletableFuture<Void> add(int slave, ModbusTable table, int startAddress, int length,
+            Value value) {
+        long key = key(slave, table);
+
+        Batch batch = batches.get(key);
+        if (batch == null) {
+            batch = new Batch(channel, slave, table);
+            batches.put(key, batch);
+            scheduler.schedule(() -> flush(key), windowMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return batch.add(startAddress, length, value);
+    }
+
+    private void flush(long key) {
+        Batch batch;
+        synchronized (this) {
+            batch = batches.remove(key);
+        }
+
+        batch.send();
+    }
+
+    private static long key(int slave, ModbusTable table) {
+        return ((long) slave << 8) | table.ordinal();
+    }
+
+    /**
+     * Writes sent together right away rather than after a window, such as the resources of an instance written by a
+     * single request: the writes to contiguous addresses of a slave go in a single request, whatever the window of
+     * their connection.
+     */
+    static class Bulk {
+        private final Map<ModbusChannel, Map<Long, Batch>> batches = new IdentityHashMap<>();
+
+        CompletableFuture<Void> writeRegisters(ModbusChannel channel, int slave, int startAddress, int[] values) {
+            return batch(channel, slave, ModbusTable.HOLDING_REGISTER).add(startAddress, values.length,
+                    i -> values[i]);
+        }
+
+        CompletableFuture<Void> writeCoils(ModbusChannel channel, int slave, int startAddress, boolean[] values) {
+            return batch(channel, slave, ModbusTable.COIL).add(startAddress, values.length, i -> values[i] ? 1 : 0);
+        }
+
+        void send() {
+            for (Map<Long, Batch> byChannel : batches.values()) {
+                byChannel.values().forEach(Batch::send);
+            }
+            batches.clear();
+        }
+
+        private Batch batch(ModbusChannel channel, int slave, ModbusTable table) {
+            return batches.computeIfAbsent(channel, k -> new HashMap<>())
+                    .computeIfAbsent(key(slave, table), k -> new Batch(channel, slave, table));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Value {
+        int get(int index);
+    }
+
+    private static class Write {
+        final int start;
+        final int length;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Write(int start, int length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        int end() {
+            return start + length;
+        }
+    }
+
+    private static class Batch {
+        final ModbusChannel channel;
+        final int slave;
+        final ModbusTable table;
+
+        // latest value of each written address
+        final TreeMap<Integer, Integer> values = new TreeMap<>();
+        final List<Write> writes = new ArrayList<>();
+
+        Batch(ModbusChannel channel, int slave, ModbusTable table) {
+            this.channel = channel;
+            this.slave = slave;
+            this.table = table;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the write, with the writes it overlaps, does not fit a request
+         */
+        CompletableFuture<Void> add(int startAddress, int length, Value value) {
+            int limit = table == ModbusTable.COIL ? MAX_COILS : MAX_REGISTERS;
+
+            // overlapping writes go in the same request
+            int start = startAddress;
+            int end = startAddress + length;
+            for (boolean grown = true; grown; ) {
+                grown = false;
+                for (Write write : writes) {
+                    if (write.start < end && write.end() > start && (write.start < start || write.end() > end)) {
+                        start = Math.min(start, write.start);
+                        end = Math.max(end, write.end());
+                        grown = true;
+                    }
+                }
+            }
+            if (end - start > limit) {
+                throw new IllegalArgumentException(table + " write over " + (end - start) + " addresses exceeds the "
+                        + limit + " a request can carry");
+            }
+
+            for (int i = 0; i < length; i++) {
+                values.put(startAddress + i, value.get(i));
+            }
+
+            Write write = new Write(startAddress, length);
+            writes.add(write);
+
+            return write.future;
+        }
+
+        /**
+         * Sends the writes, one request per run, each write completing with the request carrying it.
+         */
+        void send() {
+            for (List<Write> run : runs()) {
+                int start = run.get(0).start;
+                int end = run.stream().mapToInt(Write::end).max().getAsInt();
+
+                send(start, end).whenComplete((v, e) -> {
+                    for (Write write : run) {
+                        if (e != null) {
+                            write.future.completeExceptionally(e);
+                        } else {
+                            write.future.complete(null);
+                        }
+                    }
+                });
+            }
+        }
+
+        private CompletableFuture<Void> send(int start, int end) {
+            Map<Integer, Integer> range = values.subMap(start, end);
+
+            if (table == ModbusTable.COIL) {
+                boolean[] coils = new boolean[end - start];
+                range.forEach((address, value) -> coils[address - start] = value != 0);
+
+                return coils.length == 1 ?
+                        channel.writeCoil(slave, start, coils[0]) :
+                        channel.writeCoils(slave, start, coils);
+            }
+
+            int[] registers = new int[end - start];
+            range.forEach((address, value) -> registers[address - start] = value);
+
+            return registers.length == 1 ?
+                    channel.writeRegister(slave, start, registers[0]) :
+                    channel.writeRegisters(slave, start, registers);
+        }
+
+        /**
+         * Groups the writes into contiguous runs fitting a single request, overlapping writes staying together.
+         */
+        List<List<Write>> runs() {
+            int limit = table == ModbusTable.COIL ? MAX_COILS : MAX_REGISTERS;
+
+            writes.sort(Comparator.comparingInt(w -> w.start));
+
+            // overlapping writes first, as they must go in the same request
+            List<List<Write>> segments = new ArrayList<>();
+            List<Write> segment = null;
+            int segmentEnd = 0;
+            for (Write write : writes) {
+                if (segment == null || write.start >= segmentEnd) {
+                    segment = new ArrayList<>();
+                    segments.add(segment);
+                }
+                segment.add(write);
+                segmentEnd = Math.max(segmentEnd, write.end());
+            }
+
+            // then adjacent segments, as long as they fit a request
+            List<List<Write>> runs = new ArrayList<>();
+            List<Write> run = null;
+            int runStart = 0;
+            int runEnd = 0;
+            for (List<Write> next : segments) {
+                int start = next.get(0).start;
+                int end = next.stream().mapToInt(Write::end).max().getAsInt();
+
+                if (run == null || start != runEnd || end - runStart > limit) {
+                    run = new ArrayList<>();
+                    runs.add(run);
+                    runStart = start;
+                }
+                run.addAll(next);
+                runEnd = end;
+            }
+
+            return runs;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.zeelos.leshan.client.modbus.utils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * A read-only {@code Map<Integer, V>} view over a primitive array, keyed by array index, used to hand multi-instance
+ * resource values to Leshan without building an intermediate {@code HashMap}.
+ * <p>
+ * The entry iterator reuses a single entry instance: an entry is only valid until the next call to
+ * {@link Iterator#next()}, which is enough for copying the view into another map, and must not be kept. It compares
+ * and hashes as a {@link Map.Entry} of its current key and value.
+ */
+public abstract class ArrayBackedMap<V> extends AbstractMap<Integer, V> {
+
+    private final int length;
+
+    private ArrayBackedMap(int length) {
+        this.length = length;
+    }
+
+    public static Map<Integer, Long> ofIntegers(int[] values) {
+        return new ArrayBackedMap<Long>(values.length) {
+            @Override
+            Long valueAt(int index) {
+                return (long) values[index];
+            }
+        };
+    }
+
+    public static Map<Integer, Long> ofLongs(long[] values) {
+        return new ArrayBackedMap<Long>(values.length) {
+            @Override
+            Long valueAt(int index) {
+                return values[index];
+            }
+        };
+    }
+
+    public static Map<Integer, Double> ofDoubles(double[] values) {
+        return new ArrayBackedMap<Double>(values.length) {
+            @Override
+            Double valueAt(int index) {
+                return values[index];
+            }
+        };
+    }
+
+    public static Map<Integer, Boolean> ofBooleans(boolean[] values) {
+        return new ArrayBackedMap<Boolean>(values.length) {
+            @Override
+            Boolean valueAt(int index) {
+                return values[index];
+            }
+        };
+    }
+
+    abstract V valueAt(int index);
+
+    @Override
+    public int size() {
+        return length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Integer && (Integer) key >= 0 && (Integer) key < length;
+    }
+
+    @Override
+    public V get(Object key) {
+        return containsKey(key) ? valueAt((Integer) key) : null;
+    }
+
+    @Override
+    public Set<Entry<Integer, V>> entrySet() {
+        return new AbstractSet<Entry<Integer, V>>() {
+            @Override
+            public int size() {
+                return length;
+            }
+
+            @Override
+            public Iterator<Entry<Integer, V>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Entry<Integer, V>>, Entry<Integer, V> {
+        private int index = -1;
+
+        @Override
+        public boolean hasNext() {
+            return index + 1 < length;
+        }
+
+        @Override
+        public Entry<Integer, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            index++;
+            return this;
+        }
+
+        @Override
+        public Integer getKey() {
+            return index;
+        }
+
+        @Override
+        public V getValue() {
+            return valueAt(index);
+        }
+
+        @Override
+        public V setValue(V value) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            return getKey().equals(entry.getKey()) && Objects.equals(getValue(), entry.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -1,25 +1,19 @@
 package io.zeelos.leshan.client.modbus.utils;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class Utils {
 
     public static Map<Integer, Long> asMapInteger(int[] arr) {
-        Map<Integer, Long> map = new HashMap<>();
-        for (int i = 0; i < arr.length; i++) {
-            map.put(i, (long) arr[i]);
-        }
-
-        return map;
+        return ArrayBackedMap.ofIntegers(arr);
     }
 
-    public static int[] asArrInteger(Map map) {
+    public static int[] asArrInteger(Map<Integer, ?> map) {
         int[] arr = new int[map.size()];
 
-        for (int i = 0; i < arr.length; i++) {
-            arr[i] = (int) (long) map.get(i);
+        for (Map.Entry<Integer, ?> entry : map.entrySet()) {
+            arr[index(entry.getKey(), arr.length)] = (int) (long) (Long) entry.getValue();
         }
 
         return arr;
@@ -27,25 +21,26 @@ public class Utils {
 
 
     public static Map<Integer, Boolean> asMapBoolean(boolean[] arr) {
-        Map<Integer, Boolean> map = new HashMap<>();
-        for (int i = 0; i < arr.length; i++) {
-            map.put(i, arr[i]);
-        }
-
-        return map;
+        return ArrayBackedMap.ofBooleans(arr);
     }
 
-    public static boolean[] asArrBoolean(Map map) {
+    public static boolean[] asArrBoolean(Map<Integer, ?> map) {
         boolean[] arr = new boolean[map.size()];
 
-        for (int i = 0; i < arr.length; i++) {
-            arr[i] = (boolean) map.get(i);
-
+        for (Map.Entry<Integer, ?> entry : map.entrySet()) {
+            arr[index(entry.getKey(), arr.length)] = asBoolean(entry.getValue());
         }
 
         return arr;
     }
 
+    public static boolean asBoolean(Object value) {
+        if (!(value instanceof Boolean)) {
+            throw new IllegalArgumentException(value + " is not a boolean");
+        }
+        return (Boolean) value;
+    }
+
     public static int[] toIntArray(List<Integer> list) {
         int[] result = new int[list.size()];
         for (int i = 0; i < result.length; i++) {
@@ -53,4 +48,12 @@ public class Utils {
         }
         return result;
     }
+
+    // instances must be numbered 0..n-1 to map onto consecutive addresses
+    private static int index(int instanceId, int length) {
+        if (instanceId < 0 || instanceId >= length) {
+            throw new IllegalArgumentException("resource instance " + instanceId + " out of range 0.." + (length - 1));
+        }
+        return instanceId;
+    }
 }